@@ -0,0 +1,283 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replaces the target URI in response bodies with the servlet's URL as they stream through, for
+ * HTML, CSS, JavaScript and the like whose links point to the target.  It looks for the URI as is
+ * and with its slashes escaped as in JSON ({@code http:\/\/target\/path}).
+ * <p>
+ * Matching is an Aho-Corasick automaton over bytes, so it works for any ASCII compatible charset,
+ * and sees each byte once.  The only state kept between chunks is the automaton's: the bytes of a
+ * possible match that's cut by a chunk boundary are held back until it's decided, which is at most
+ * the length of the URI.  Like {@link ProxyServlet#rewriteUrlFromResponse}, it replaces any text
+ * starting with the target URI.
+ * <p>
+ * An instance is immutable and shared; a {@link Rewriting} is the state of one response.  It's the
+ * {@link ResponseBodyTransformer} of {@link ProxyServlet#P_REWRITEBODY}.
+ *
+ * @see ProxyServlet#P_REWRITEBODY
+ */
+final class BodyUrlRewriter {
+
+  private static final int STAGING_SIZE = 8192;
+
+  private final byte[][] patterns;
+  /** Bytes starting a pattern; a run of other bytes passes through untouched. */
+  private final boolean[] starts = new boolean[256];
+  // The states of the automaton; 0 is the root.  A state is the prefix of length depth of pattern.
+  private final int[] depth;
+  private final int[] pattern;
+  private final int[] fail;
+  /** The pattern ending at the state, else -1. */
+  private final int[] match;
+  private final byte[][] childBytes;
+  private final int[][] childStates;
+
+  /** @param targetUri the URI to replace; it's matched case-sensitively */
+  BodyUrlRewriter(String targetUri) {
+    this.patterns = patterns(targetUri);
+    int maxStates = 1;
+    for (byte[] p : patterns) {
+      maxStates += p.length;
+    }
+    depth = new int[maxStates];
+    pattern = new int[maxStates];
+    fail = new int[maxStates];
+    match = new int[maxStates];
+    childBytes = new byte[maxStates][];
+    childStates = new int[maxStates][];
+    match[0] = -1;
+    int states = 1;
+    // the trie
+    for (int p = 0; p < patterns.length; p++) {
+      int state = 0;
+      for (int i = 0; i < patterns[p].length; i++) {
+        byte b = patterns[p][i];
+        int next = child(state, b);
+        if (next < 0) {
+          next = states++;
+          depth[next] = i + 1;
+          pattern[next] = p;
+          match[next] = -1;
+          addChild(state, b, next);
+        }
+        state = next;
+      }
+      match[state] = p;
+      starts[patterns[p][0] & 0xff] = true;
+    }
+    // the failure links, breadth first so a state's are done before its children's
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = 0;
+    while (head < tail) {
+      int state = queue[head++];
+      byte[] bytes = childBytes[state];
+      for (int c = 0; bytes != null && c < bytes.length; c++) {
+        int next = childStates[state][c];
+        if (state != 0) {
+          int f = fail[state];
+          int target;
+          while ((target = child(f, bytes[c])) < 0 && f != 0) {
+            f = fail[f];
+          }
+          fail[next] = target >= 0 ? target : 0;
+          if (match[next] < 0) {
+            match[next] = match[fail[next]];
+          }
+        }
+        queue[tail++] = next;
+      }
+    }
+  }
+
+  /** The target URI, and the same with its slashes escaped as in JSON if it has any. */
+  private static byte[][] patterns(String uri) {
+    byte[] plain = uri.getBytes(StandardCharsets.UTF_8);
+    String escaped = uri.replace("/", "\\/");
+    return escaped.equals(uri) ? new byte[][] {plain}
+            : new byte[][] {plain, escaped.getBytes(StandardCharsets.UTF_8)};
+  }
+
+  private int child(int state, byte b) {
+    byte[] bytes = childBytes[state];
+    if (bytes != null) {
+      for (int c = 0; c < bytes.length; c++) {
+        if (bytes[c] == b) {
+          return childStates[state][c];
+        }
+      }
+    }
+    return -1;
+  }
+
+  private void addChild(int state, byte b, int next) {
+    byte[] bytes = childBytes[state];
+    int n = bytes == null ? 0 : bytes.length;
+    byte[] newBytes = new byte[n + 1];
+    int[] newStates = new int[n + 1];
+    if (n > 0) {
+      System.arraycopy(bytes, 0, newBytes, 0, n);
+      System.arraycopy(childStates[state], 0, newStates, 0, n);
+    }
+    newBytes[n] = b;
+    newStates[n] = next;
+    childBytes[state] = newBytes;
+    childStates[state] = newStates;
+  }
+
+  /**
+   * Starts rewriting a response body.
+   *
+   * @param replacement the servlet's URL, replacing the target URI
+   */
+  Rewriting open(String replacement, ResponseBodyTransformer.Sink out) {
+    byte[][] replacements = new byte[patterns.length][];
+    replacements[0] = replacement.getBytes(StandardCharsets.UTF_8);
+    if (patterns.length > 1) {
+      replacements[1] = replacement.replace("/", "\\/").getBytes(StandardCharsets.UTF_8);
+    }
+    return new Rewriting(replacements, out);
+  }
+
+  /** Rewrites one response body. */
+  final class Rewriting implements ResponseBodyTransformer.Stage {
+    private final byte[][] replacements;
+    private final ResponseBodyTransformer.Sink out;
+    private final ByteBuffer staging = ByteBuffer.allocate(STAGING_SIZE);
+    private int state;
+
+    private Rewriting(byte[][] replacements, ResponseBodyTransformer.Sink out) {
+      this.replacements = replacements;
+      this.out = out;
+    }
+
+    /** Rewrites all remaining bytes of {@code data}, holding back a possible match at its end. */
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+      int limit = data.limit();
+      int i = data.position();
+      while (i < limit) {
+        if (state == 0) {
+          // pass the run of bytes that can't start a match
+          int start = i;
+          while (i < limit && !starts[data.get(i) & 0xff]) {
+            i++;
+          }
+          if (i > start) {
+            emit(data, start, i);
+          }
+          if (i == limit) {
+            break;
+          }
+        }
+        step(data.get(i++));
+      }
+      data.position(limit);
+      drain();
+    }
+
+    private void step(byte b) throws IOException {
+      int s = state;
+      int next;
+      while ((next = child(s, b)) < 0 && s != 0) {
+        s = fail[s];
+      }
+      if (next < 0) {
+        next = 0;
+      }
+      // Of the held back bytes and b, those not part of the new state's prefix are decided
+      emitPrefix(state, depth[state] + 1 - depth[next], b);
+      state = next;
+      int p = match[next];
+      if (p >= 0) {
+        // the pattern ends the state's prefix; what's before it is no match
+        emitPrefix(next, depth[next] - patterns[p].length, b);
+        put(replacements[p], 0, replacements[p].length);
+        state = 0;
+      }
+    }
+
+    /** Emits the first {@code length} bytes of the state's prefix followed by {@code b}. */
+    private void emitPrefix(int state, int length, byte b) throws IOException {
+      if (length <= 0) {
+        return;
+      }
+      int held = Math.min(length, depth[state]);
+      put(patterns[pattern[state]], 0, held);
+      if (length > held) {
+        if (!staging.hasRemaining()) {
+          drain();
+        }
+        staging.put(b);
+      }
+    }
+
+    private void emit(ByteBuffer data, int start, int end) throws IOException {
+      if (data.hasArray()) {
+        put(data.array(), data.arrayOffset() + start, end - start);
+        return;
+      }
+      ByteBuffer run = data.duplicate();
+      run.limit(end).position(start);
+      while (run.hasRemaining()) {
+        if (!staging.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(run.remaining(), staging.remaining());
+        int runLimit = run.limit();
+        run.limit(run.position() + n);
+        staging.put(run);
+        run.limit(runLimit);
+      }
+    }
+
+    private void put(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (!staging.hasRemaining()) {
+          drain();
+        }
+        int n = Math.min(length, staging.remaining());
+        staging.put(bytes, offset, n);
+        offset += n;
+        length -= n;
+      }
+    }
+
+    private void drain() throws IOException {
+      if (staging.position() > 0) {
+        staging.flip();
+        out.write(staging);
+        staging.clear();
+      }
+    }
+
+    /** Emits the bytes held back at the end of the body. */
+    @Override
+    public void finish() throws IOException {
+      put(patterns[pattern[state]], 0, depth[state]);
+      state = 0;
+      drain();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of the buffers used to copy response bodies, so that they aren't allocated per response.
+ * Buffers come in a few size classes; a request for a given size hint is served by the smallest
+ * class that fits it, or the largest class if it's too big.  A body of unknown size, which may be
+ * small or streamed slowly, gets the class that fits {@link #UNKNOWN_SIZE_HINT}.  Buffers are on
+ * the heap: bodies are read and written through streams, which would stage direct buffers through
+ * a {@code byte[]} anyway.
+ * <p>
+ * Use {@link #threadLocal(int[])} with a fixed pool of container threads, and
+ * {@link #striped(int[], int)} otherwise, notably with virtual threads, which are never
+ * reused.
+ */
+public abstract class BufferPool {
+
+  private static final int[] DEFAULT_SIZES = {4 * 1024, 16 * 1024, 64 * 1024};
+  private static final int[] UNPOOLED_SIZES = {10 * 1024};
+
+  /** The size a body of unknown length is assumed to have when choosing its size class. */
+  public static final int UNKNOWN_SIZE_HINT = 16 * 1024;
+
+  protected final int[] sizes;//ascending
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  protected BufferPool(int[] sizes) {
+    if (sizes.length == 0) {
+      throw new IllegalArgumentException("At least one buffer size is required");
+    }
+    this.sizes = sizes.clone();
+    Arrays.sort(this.sizes);
+    if (this.sizes[0] <= 0) {
+      throw new IllegalArgumentException("Buffer sizes must be positive: " + Arrays.toString(sizes));
+    }
+  }
+
+  /** The size classes used when none are configured; a copy. */
+  public static int[] defaultSizes() {
+    return DEFAULT_SIZES.clone();
+  }
+
+  /**
+   * The size class of a buffer allocated per response when pooling is off and none are configured;
+   * a copy.
+   */
+  public static int[] unpooledSizes() {
+    return UNPOOLED_SIZES.clone();
+  }
+
+  /** A pool that doesn't pool: every buffer is newly allocated, and counted as a miss. */
+  public static BufferPool none(int[] sizes) {
+    return new BufferPool(sizes) {
+      @Override
+      protected ByteBuffer poll(int sizeClass) {
+        return null;
+      }
+
+      @Override
+      protected boolean offer(int sizeClass, ByteBuffer buffer) {
+        return false;
+      }
+    };
+  }
+
+  /** A pool holding one buffer of each size class per thread. */
+  public static BufferPool threadLocal(int[] sizes) {
+    return new BufferPool(sizes) {
+      private final ThreadLocal<ByteBuffer[]> buffers = ThreadLocal.withInitial(() -> new ByteBuffer[this.sizes.length]);
+
+      @Override
+      protected ByteBuffer poll(int sizeClass) {
+        ByteBuffer[] threadBuffers = buffers.get();
+        ByteBuffer buffer = threadBuffers[sizeClass];
+        threadBuffers[sizeClass] = null;
+        return buffer;
+      }
+
+      @Override
+      protected boolean offer(int sizeClass, ByteBuffer buffer) {
+        ByteBuffer[] threadBuffers = buffers.get();
+        if (threadBuffers[sizeClass] != null) {
+          return false;
+        }
+        threadBuffers[sizeClass] = buffer;
+        return true;
+      }
+    };
+  }
+
+  /**
+   * A pool shared by all threads, holding up to {@code buffersPerStripe} buffers of each size class
+   * in each of a number of stripes, to limit contention.  A thread's stripe is chosen by its id.
+   */
+  public static BufferPool striped(int[] sizes, final int buffersPerStripe) {
+    return new BufferPool(sizes) {
+      private final int stripeMask = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2 - 1;
+      // slot index: ((stripe * sizes) + sizeClass) * buffersPerStripe + n
+      private final AtomicReferenceArray<ByteBuffer> slots =
+              new AtomicReferenceArray<>((stripeMask + 1) * this.sizes.length * buffersPerStripe);
+
+      private int firstSlot(int sizeClass) {
+        int stripe = (int) Thread.currentThread().getId() & stripeMask;
+        return (stripe * this.sizes.length + sizeClass) * buffersPerStripe;
+      }
+
+      @Override
+      protected ByteBuffer poll(int sizeClass) {
+        int first = firstSlot(sizeClass);
+        for (int i = first; i < first + buffersPerStripe; i++) {
+          if (slots.get(i) != null) {
+            ByteBuffer buffer = slots.getAndSet(i, null);
+            if (buffer != null) {
+              return buffer;
+            }
+          }
+        }
+        return null;
+      }
+
+      @Override
+      protected boolean offer(int sizeClass, ByteBuffer buffer) {
+        int first = firstSlot(sizeClass);
+        for (int i = first; i < first + buffersPerStripe; i++) {
+          if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Takes a pooled buffer of the given size class, or returns null. */
+  protected abstract ByteBuffer poll(int sizeClass);
+
+  /** Returns a buffer of the given size class to the pool; false if it's full. */
+  protected abstract boolean offer(int sizeClass, ByteBuffer buffer);
+
+  /**
+   * Returns a cleared buffer, to be {@link #release(ByteBuffer) released} when done.
+   *
+   * @param sizeHint the number of bytes expected to go through the buffer, or -1 if unknown
+   */
+  public ByteBuffer acquire(long sizeHint) {
+    int sizeClass = sizeClass(sizeHint);
+    ByteBuffer buffer = poll(sizeClass);
+    if (buffer != null) {
+      hits.increment();
+      buffer.clear();
+      return buffer;
+    }
+    misses.increment();
+    return ByteBuffer.allocate(sizes[sizeClass]);
+  }
+
+  /** Returns a buffer obtained from {@link #acquire(long)} to the pool. */
+  public void release(ByteBuffer buffer) {
+    int sizeClass = Arrays.binarySearch(sizes, buffer.capacity());
+    if (sizeClass >= 0 && buffer.hasArray()) {
+      offer(sizeClass, buffer);
+    }
+  }
+
+  private int sizeClass(long sizeHint) {
+    if (sizeHint < 0) {
+      sizeHint = UNKNOWN_SIZE_HINT;
+    }
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizeHint <= sizes[i]) {
+        return i;
+      }
+    }
+    return sizes.length - 1;
+  }
+
+  /** The number of {@link #acquire(long)} calls served from the pool. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** The number of {@link #acquire(long)} calls that had to allocate a buffer. */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "BufferPool{sizes=" + Arrays.toString(sizes) + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+  }
+}
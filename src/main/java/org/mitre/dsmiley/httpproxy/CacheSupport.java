@@ -0,0 +1,333 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The parts of HTTP caching (RFC 9111) shared by the caching features of {@link ProxyServlet}:
+ * directives, dates, freshness and which messages a shared cache may store.
+ */
+final class CacheSupport {
+
+  /** Statuses that are cacheable without explicit freshness information (RFC 9110 15.1). */
+  private static final int[] heuristicallyCacheableStatuses = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+  /** The heuristic freshness is this fraction of the time since Last-Modified (RFC 9111 4.2.2). */
+  private static final double HEURISTIC_FRACTION = 0.1;
+
+  private static final long MAX_HEURISTIC_FRESHNESS = 24L * 60 * 60 * 1000;
+
+  private CacheSupport() {
+  }
+
+  /**
+   * Parses the Cache-Control directives of a message.  Names are lower-cased; directives without
+   * an argument map to null.
+   */
+  static Map<String, String> cacheControl(HttpMessage message) {
+    Header[] headers = message.getHeaders(HttpHeaders.CACHE_CONTROL);
+    if (headers.length == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> directives = new HashMap<>();
+    for (Header header : headers) {
+      for (HeaderElement element : header.getElements()) {
+        directives.put(element.getName().toLowerCase(Locale.ROOT), element.getValue());
+      }
+    }
+    return directives;
+  }
+
+  /** The value of a delta-seconds directive in millis, or -1 if absent or invalid. */
+  static long deltaMillis(Map<String, String> cacheControl, String directive) {
+    String value = cacheControl.get(directive);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value.trim())) * 1000;
+    } catch (NumberFormatException e) {
+      return value.isEmpty() ? -1 : Long.MAX_VALUE / 2;//overflow; treat as "forever"
+    }
+  }
+
+  /** A date header's value in millis since the epoch, or -1 if absent or invalid. */
+  static long dateHeader(HttpMessage message, String name) {
+    Header header = message.getFirstHeader(name);
+    if (header == null) {
+      return -1;
+    }
+    Date date = DateUtils.parseDate(header.getValue());
+    return date == null ? -1 : date.getTime();
+  }
+
+  static String firstHeaderValue(HttpMessage message, String name) {
+    Header header = message.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  /** Whether the request asks not to be answered from a cache without revalidation. */
+  static boolean isNoCacheRequest(HttpRequest request, Map<String, String> cacheControl) {
+    if (cacheControl.containsKey("no-cache")) {
+      return true;
+    }
+    if (cacheControl.isEmpty()) {
+      Header pragma = request.getFirstHeader("Pragma");
+      return pragma != null && pragma.getValue().toLowerCase(Locale.ROOT).contains("no-cache");
+    }
+    return false;
+  }
+
+  /** Whether a request could be answered from a cache at all: a GET without a Range. */
+  static boolean isCacheableRequest(HttpRequest request) {
+    return "GET".equals(request.getRequestLine().getMethod())
+            && request.getFirstHeader(HttpHeaders.RANGE) == null;
+  }
+
+  /** Whether the request carries conditional headers, i.e. the client has a copy already. */
+  static boolean isConditionalRequest(HttpRequest request) {
+    return request.getFirstHeader(HttpHeaders.IF_NONE_MATCH) != null
+            || request.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE) != null;
+  }
+
+  /** Whether a method invalidates stored responses for its target URI (RFC 9111 4.4). */
+  static boolean isUnsafeMethod(String method) {
+    switch (method) {
+      case "GET":
+      case "HEAD":
+      case "OPTIONS":
+      case "TRACE":
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Whether a shared cache may store the response to the request (RFC 9111 3).  The request must
+   * already be {@link #isCacheableRequest(HttpRequest) cacheable}.
+   */
+  static boolean isStorable(HttpRequest request, Map<String, String> requestCacheControl,
+                            HttpResponse response, Map<String, String> responseCacheControl) {
+    if (requestCacheControl.containsKey("no-store") || responseCacheControl.containsKey("no-store")
+            || responseCacheControl.containsKey("private")) {
+      return false;
+    }
+    if (request.getFirstHeader(HttpHeaders.AUTHORIZATION) != null
+            && !responseCacheControl.containsKey("public")
+            && !responseCacheControl.containsKey("s-maxage")
+            && !responseCacheControl.containsKey("must-revalidate")) {
+      return false;
+    }
+    Header vary = response.getFirstHeader(HttpHeaders.VARY);
+    if (vary != null && vary.getValue().trim().equals("*")) {
+      return false;
+    }
+    // Cookies are per client; sharing them through a cache would leak sessions
+    if (response.getFirstHeader("Set-Cookie") != null) {
+      return false;
+    }
+    int status = response.getStatusLine().getStatusCode();
+    return isHeuristicallyCacheable(status)
+            || responseCacheControl.containsKey("max-age")
+            || responseCacheControl.containsKey("s-maxage")
+            || responseCacheControl.containsKey("public")
+            || response.getFirstHeader(HttpHeaders.EXPIRES) != null;
+  }
+
+  static boolean isHeuristicallyCacheable(int status) {
+    for (int cacheable : heuristicallyCacheableStatuses) {
+      if (status == cacheable) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The freshness lifetime of a response in millis, for a shared cache (RFC 9111 4.2.1), or 0 if it
+   * must always be revalidated.
+   */
+  static long freshnessLifetime(HttpResponse response, Map<String, String> cacheControl, long dateValue) {
+    if (cacheControl.containsKey("no-cache")) {
+      return 0;
+    }
+    long sMaxAge = deltaMillis(cacheControl, "s-maxage");
+    if (sMaxAge >= 0) {
+      return sMaxAge;
+    }
+    long maxAge = deltaMillis(cacheControl, "max-age");
+    if (maxAge >= 0) {
+      return maxAge;
+    }
+    if (response.getFirstHeader(HttpHeaders.EXPIRES) != null) {
+      long expires = dateHeader(response, HttpHeaders.EXPIRES);
+      return expires < 0 || dateValue < 0 ? 0 : Math.max(0, expires - dateValue);//invalid means expired
+    }
+    long lastModified = dateHeader(response, HttpHeaders.LAST_MODIFIED);
+    if (lastModified >= 0 && dateValue > lastModified
+            && isHeuristicallyCacheable(response.getStatusLine().getStatusCode())) {
+      return Math.min(MAX_HEURISTIC_FRESHNESS, (long) ((dateValue - lastModified) * HEURISTIC_FRACTION));
+    }
+    return 0;
+  }
+
+  /**
+   * The age of a response when it was received (RFC 9111 4.2.3), in millis.
+   *
+   * @param requestTime when the request was sent
+   * @param responseTime when the response was received
+   */
+  static long initialAge(HttpResponse response, long requestTime, long responseTime) {
+    long dateValue = dateHeader(response, HttpHeaders.DATE);
+    long apparentAge = dateValue < 0 ? 0 : Math.max(0, responseTime - dateValue);
+    long ageValue = 0;
+    Header age = response.getFirstHeader(HttpHeaders.AGE);
+    if (age != null) {
+      try {
+        ageValue = Math.max(0, Long.parseLong(age.getValue().trim())) * 1000;
+      } catch (NumberFormatException e) {
+        // ignore it
+      }
+    }
+    long correctedAgeValue = ageValue + (responseTime - requestTime);
+    return Math.max(apparentAge, correctedAgeValue);
+  }
+
+  /** The headers of a response whose body is buffered, with its actual Content-Length. */
+  static Header[] withContentLength(Header[] headers, int length) {
+    List<Header> result = new ArrayList<>(headers.length + 1);
+    for (Header header : headers) {
+      if (!header.getName().equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)
+              && !header.getName().equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)) {
+        result.add(header);
+      }
+    }
+    result.add(new BasicHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(length)));
+    return result.toArray(new Header[0]);
+  }
+
+  /**
+   * Wraps an entity so that, as its content is read, the bytes are collected and passed to
+   * {@code onComplete} once the end is reached, unless there are more than {@code maxLength}.
+   */
+  static HttpEntity collecting(HttpEntity entity, long maxLength, Consumer<byte[]> onComplete) {
+    return new CollectingEntity(entity, maxLength, onComplete);
+  }
+
+  private static final class CollectingEntity extends HttpEntityWrapper {
+    private final long maxLength;
+    private final Consumer<byte[]> onComplete;
+    private InputStream content;
+
+    CollectingEntity(HttpEntity entity, long maxLength, Consumer<byte[]> onComplete) {
+      super(entity);
+      this.maxLength = maxLength;
+      this.onComplete = onComplete;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      if (content == null) {
+        content = new CollectingInputStream(super.getContent());
+      }
+      return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in = getContent();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+
+    private final class CollectingInputStream extends FilterInputStream {
+      private ByteArrayOutputStream collected;
+
+      CollectingInputStream(InputStream in) {
+        super(in);
+        long contentLength = wrappedEntity.getContentLength();
+        collected = new ByteArrayOutputStream(contentLength >= 0 ? (int) contentLength : 8192);
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+          complete();
+        } else if (collected != null) {
+          collected.write(b);
+          checkLength();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read == -1) {
+          complete();
+        } else if (collected != null) {
+          collected.write(b, off, read);
+          checkLength();
+        }
+        return read;
+      }
+
+      private void checkLength() {
+        if (collected.size() > maxLength) {
+          collected = null;//give up
+        }
+      }
+
+      private void complete() {
+        if (collected != null) {
+          byte[] body = collected.toByteArray();
+          collected = null;
+          onComplete.accept(body);
+        }
+      }
+    }
+  }
+}
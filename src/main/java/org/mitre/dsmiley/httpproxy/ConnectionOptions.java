@@ -0,0 +1,114 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+
+/**
+ * The header names listed in the Connection headers of a message (RFC 7230 6.1), which are
+ * hop-by-hop for that message only.  It's parsed once per message, and is usually empty or holds a
+ * name or two, so it's a plain array searched case insensitively.
+ */
+final class ConnectionOptions {
+
+  static final ConnectionOptions NONE = new ConnectionOptions(new String[0], 0);
+
+  private final String[] names;
+  private final int size;
+
+  private ConnectionOptions(String[] names, int size) {
+    this.names = names;
+    this.size = size;
+  }
+
+  /** Parses the values of the Connection headers of a request. */
+  static ConnectionOptions parse(Enumeration<String> connectionHeaders) {
+    ConnectionOptions options = NONE;
+    while (connectionHeaders != null && connectionHeaders.hasMoreElements()) {
+      options = options.parse(connectionHeaders.nextElement());
+    }
+    return options;
+  }
+
+  /** Parses the Connection headers of a response. */
+  static ConnectionOptions parse(Header[] connectionHeaders) {
+    ConnectionOptions options = NONE;
+    for (Header connectionHeader : connectionHeaders) {
+      options = options.parse(connectionHeader.getValue());
+    }
+    return options;
+  }
+
+  /**
+   * Adds the tokens of a Connection header value, a comma separated list.  The array may be shared
+   * with the returned instance, so this one mustn't be used afterwards (unless it's {@link #NONE}).
+   */
+  private ConnectionOptions parse(String connection) {
+    String[] names = this.names;
+    int size = this.size;
+    int length = connection.length();
+    int start = 0;
+    while (start < length) {
+      int end = connection.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      int tokenEnd = end;
+      while (start < tokenEnd && isWhitespace(connection.charAt(start))) {
+        start++;
+      }
+      while (tokenEnd > start && isWhitespace(connection.charAt(tokenEnd - 1))) {
+        tokenEnd--;
+      }
+      // "close" and the hop-by-hop headers are dropped anyway; don't bother keeping them
+      boolean close = tokenEnd - start == 5 && connection.regionMatches(true, start, "close", 0, 5);
+      if (tokenEnd > start && !close) {
+        String name = connection.substring(start, tokenEnd);
+        if (HeaderKind.of(name) != HeaderKind.HOP_BY_HOP) {
+          if (size == names.length) {
+            names = Arrays.copyOf(names, Math.max(2, size * 2));
+          }
+          names[size++] = name;
+        }
+      }
+      start = end + 1;
+    }
+    return size == this.size ? this : new ConnectionOptions(names, size);
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t';
+  }
+
+  /** Whether a header is named in the Connection headers, case insensitively. */
+  boolean contains(String headerName) {
+    for (int i = 0; i < size; i++) {
+      if (names[i].equalsIgnoreCase(headerName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return String.join(", ", Arrays.copyOf(names, size));
+  }
+}
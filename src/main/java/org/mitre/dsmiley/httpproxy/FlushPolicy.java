@@ -0,0 +1,360 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides when a streamed (chunked) response body is flushed to the servlet client, trading
+ * latency against the number of small writes.  Every flush is a write to the client's socket; the
+ * container flushes on its own whenever its buffer fills up, and at the end of the response.
+ * <p>
+ * A policy is shared by all responses; the per response state is a {@link Session}.
+ */
+public abstract class FlushPolicy {
+
+  private static final FlushPolicy NEVER = bytes(Integer.MAX_VALUE);
+
+  /**
+   * Parses a policy specification:
+   * <ul>
+   *   <li>{@code whenIdle}: flush when the next read from upstream would block</li>
+   *   <li>{@code immediate}: flush after every read from upstream</li>
+   *   <li>{@code never}: leave flushing to the container</li>
+   *   <li>{@code bytes:N}: flush once N bytes are unflushed</li>
+   *   <li>{@code time:MS} or {@code time:MS,N}: flush at most MS milliseconds after the first
+   *   unflushed byte was written, or once N bytes are unflushed</li>
+   *   <li>{@code sse}: flush at the end of each server-sent event (a blank line)</li>
+   * </ul>
+   *
+   * @param scheduler runs the flushes of the {@code time} policy; it may be null otherwise
+   */
+  public static FlushPolicy parse(String spec, ScheduledExecutorService scheduler) {
+    int colon = spec.indexOf(':');
+    String name = colon < 0 ? spec : spec.substring(0, colon);
+    String[] args = colon < 0 ? new String[0] : spec.substring(colon + 1).split(",");
+    switch (name) {
+      case "whenIdle":
+        return whenIdle();
+      case "immediate":
+        return immediate();
+      case "never":
+        return never();
+      case "sse":
+        return sse();
+      case "bytes":
+        if (args.length == 1) {
+          return bytes(Integer.parseInt(args[0].trim()));
+        }
+        break;
+      case "time":
+        if (args.length == 1 || args.length == 2) {
+          return timed(Long.parseLong(args[0].trim()),
+                  args.length == 2 ? Integer.parseInt(args[1].trim()) : Integer.MAX_VALUE, scheduler);
+        }
+        break;
+      default:
+    }
+    throw new IllegalArgumentException("Unrecognized flush policy: " + spec);
+  }
+
+  /** Whether {@link #parse(String, ScheduledExecutorService)} needs a scheduler for this spec. */
+  public static boolean needsScheduler(String spec) {
+    return spec.startsWith("time:");
+  }
+
+  /** Flushes when the next read from upstream would block; the default. */
+  public static FlushPolicy whenIdle() {
+    return new FlushPolicy() {
+      @Override
+      public Session open(WritableByteChannel out, OutputStream flushable, InputStream in) {
+        return new Session(out, flushable) {
+          @Override
+          protected boolean shouldFlush(ByteBuffer written) throws IOException {
+            return in.available() == 0;/* next in.read will block */
+          }
+        };
+      }
+
+      @Override
+      public String toString() {
+        return "whenIdle";
+      }
+    };
+  }
+
+  /** Flushes after every read from upstream. */
+  public static FlushPolicy immediate() {
+    return new FlushPolicy() {
+      @Override
+      public Session open(WritableByteChannel out, OutputStream flushable, InputStream in) {
+        return new Session(out, flushable) {
+          @Override
+          protected boolean shouldFlush(ByteBuffer written) {
+            return true;
+          }
+        };
+      }
+
+      @Override
+      public String toString() {
+        return "immediate";
+      }
+    };
+  }
+
+  /** Leaves flushing to the container. */
+  public static FlushPolicy never() {
+    return NEVER;
+  }
+
+  /** Flushes once {@code threshold} bytes are unflushed. */
+  public static FlushPolicy bytes(final int threshold) {
+    return new FlushPolicy() {
+      @Override
+      public Session open(WritableByteChannel out, OutputStream flushable, InputStream in) {
+        return new Session(out, flushable) {
+          @Override
+          protected boolean shouldFlush(ByteBuffer written) {
+            return getUnflushed() >= threshold;
+          }
+        };
+      }
+
+      @Override
+      public String toString() {
+        return threshold == Integer.MAX_VALUE ? "never" : "bytes:" + threshold;
+      }
+    };
+  }
+
+  /**
+   * Flushes at most {@code maxDelayMillis} after the first unflushed byte was written, even while
+   * the copying thread is blocked reading from upstream, or once {@code threshold} bytes are
+   * unflushed.
+   */
+  public static FlushPolicy timed(final long maxDelayMillis, final int threshold,
+                                  final ScheduledExecutorService scheduler) {
+    if (scheduler == null) {
+      throw new IllegalArgumentException("A scheduler is required");
+    }
+    return new FlushPolicy() {
+      @Override
+      public Session open(WritableByteChannel out, OutputStream flushable, InputStream in) {
+        return new TimedSession(out, flushable, maxDelayMillis, threshold, scheduler);
+      }
+
+      @Override
+      public String toString() {
+        return "time:" + maxDelayMillis + (threshold == Integer.MAX_VALUE ? "" : "," + threshold);
+      }
+    };
+  }
+
+  /**
+   * Flushes at the end of each server-sent event, i.e. after a blank line, so that events are
+   * neither delayed nor sent in pieces.
+   */
+  public static FlushPolicy sse() {
+    return new FlushPolicy() {
+      @Override
+      public Session open(WritableByteChannel out, OutputStream flushable, InputStream in) {
+        return new EventStreamSession(out, flushable);
+      }
+
+      @Override
+      public String toString() {
+        return "sse";
+      }
+    };
+  }
+
+  /**
+   * Starts writing a response body.
+   *
+   * @param out the servlet client
+   * @param flushable the servlet client's output stream, which {@code out} writes to
+   * @param in the upstream response body
+   */
+  public abstract Session open(WritableByteChannel out, OutputStream flushable, InputStream in);
+
+  /**
+   * Writes a response body, flushing as the policy dictates.  It's used by a single thread, and
+   * must be closed when the body is written.
+   */
+  public abstract static class Session implements Closeable {
+    protected final WritableByteChannel out;
+    protected final OutputStream flushable;
+    private long unflushed;
+
+    protected Session(WritableByteChannel out, OutputStream flushable) {
+      this.out = out;
+      this.flushable = flushable;
+    }
+
+    /** Writes all remaining bytes of {@code data}, then flushes if {@link #shouldFlush(ByteBuffer)}. */
+    public void write(ByteBuffer data) throws IOException {
+      ByteBuffer written = data.duplicate();
+      while (data.hasRemaining()) {
+        out.write(data);
+      }
+      unflushed += written.remaining();
+      if (shouldFlush(written)) {
+        flush();
+      }
+    }
+
+    /**
+     * Decides whether to flush after a write.
+     *
+     * @param written the bytes just written, from position to limit
+     */
+    protected abstract boolean shouldFlush(ByteBuffer written) throws IOException;
+
+    protected void flush() throws IOException {
+      flushable.flush();
+      unflushed = 0;
+    }
+
+    /** The number of bytes written since the last flush. */
+    protected long getUnflushed() {
+      return unflushed;
+    }
+
+    /** Called when the body has been written, or failed to. It doesn't close the client stream. */
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class TimedSession extends Session {
+    private final long maxDelayMillis;
+    private final int threshold;
+    private final ScheduledExecutorService scheduler;
+    // A ReentrantLock rather than synchronized, which would pin a virtual thread while writing
+    private final ReentrantLock lock = new ReentrantLock();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    TimedSession(WritableByteChannel out, OutputStream flushable, long maxDelayMillis, int threshold,
+                 ScheduledExecutorService scheduler) {
+      super(out, flushable);
+      this.maxDelayMillis = maxDelayMillis;
+      this.threshold = threshold;
+      this.scheduler = scheduler;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+      // the scheduled flush must not interleave with a write
+      lock.lock();
+      try {
+        super.write(data);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    protected boolean shouldFlush(ByteBuffer written) {
+      if (getUnflushed() >= threshold) {
+        return true;
+      }
+      if (scheduledFlush == null && getUnflushed() > 0) {
+        scheduledFlush = scheduler.schedule(this::scheduledFlush, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+      return false;
+    }
+
+    @Override
+    protected void flush() throws IOException {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+        scheduledFlush = null;
+      }
+      super.flush();
+    }
+
+    private void scheduledFlush() {
+      lock.lock();
+      try {
+        scheduledFlush = null;
+        if (!closed && getUnflushed() > 0) {
+          flush();
+        }
+      } catch (IOException e) {
+        // the client went away; the next write fails too
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        closed = true;
+        if (scheduledFlush != null) {
+          scheduledFlush.cancel(false);
+          scheduledFlush = null;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Tracks line terminators (CRLF, LF or CR) across writes, to find blank lines. */
+  private static class EventStreamSession extends Session {
+    private boolean atLineStart;
+    private boolean afterCR;
+
+    EventStreamSession(WritableByteChannel out, OutputStream flushable) {
+      super(out, flushable);
+    }
+
+    @Override
+    protected boolean shouldFlush(ByteBuffer written) {
+      boolean eventEnded = false;
+      for (int i = written.position(); i < written.limit(); i++) {
+        byte b = written.get(i);
+        if (b == '\n' && afterCR) {
+          afterCR = false;//the end of a CRLF
+        } else if (b == '\r' || b == '\n') {
+          if (atLineStart) {
+            eventEnded = true;
+          }
+          atLineStart = true;
+          afterCR = b == '\r';
+        } else {
+          atLineStart = false;
+          afterCR = false;
+        }
+      }
+      return eventEnded;
+    }
+  }
+}
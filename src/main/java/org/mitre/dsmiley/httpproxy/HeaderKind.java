@@ -0,0 +1,84 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * The header names {@link ProxyServlet} treats specially when copying headers, looked up in a
+ * precomputed table.  A lookup hashes the length and the first and last characters of the name,
+ * case insensitively, then compares at most a couple of candidates with
+ * {@link String#equalsIgnoreCase(String)}; nothing is allocated.
+ */
+enum HeaderKind {
+  /** Any header without special handling. */
+  OTHER,
+  /** A hop-by-hop header (RFC 7230 6.1), meaningful only for a single connection. */
+  HOP_BY_HOP("Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization",
+          "TE", "Trailers", "Transfer-Encoding", "Upgrade"),
+  CONTENT_LENGTH("Content-Length"),
+  ACCEPT_ENCODING("Accept-Encoding"),
+  HOST("Host"),
+  COOKIE("Cookie"),
+  SET_COOKIE("Set-Cookie"),
+  /** The obsolete RFC 2965 header, which may hold several comma separated cookies. */
+  SET_COOKIE2("Set-Cookie2"),
+  LOCATION("Location"),
+  CONTENT_LOCATION("Content-Location"),
+  REFRESH("Refresh"),
+  LINK("Link");
+
+  private static final int TABLE_SIZE = 64;//a power of 2, about 4 times the number of names
+  private static final String[] NAMES = new String[TABLE_SIZE];
+  private static final HeaderKind[] KINDS = new HeaderKind[TABLE_SIZE];
+  static {
+    for (HeaderKind kind : values()) {
+      for (String name : kind.names) {
+        int i = slot(name);
+        while (NAMES[i] != null) {
+          i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        NAMES[i] = name;
+        KINDS[i] = kind;
+      }
+    }
+  }
+
+  private final String[] names;
+
+  HeaderKind(String... names) {
+    this.names = names;
+  }
+
+  private static int slot(String name) {
+    int length = name.length();
+    // | 0x20 lower cases ASCII letters; other characters just hash to some other slot
+    int hash = (length * 31 + (name.charAt(0) | 0x20)) * 31 + (name.charAt(length - 1) | 0x20);
+    return (hash ^ (hash >>> 5)) & (TABLE_SIZE - 1);
+  }
+
+  /** Classifies a header name, case insensitively. */
+  static HeaderKind of(String name) {
+    if (name.isEmpty()) {
+      return OTHER;
+    }
+    for (int i = slot(name); NAMES[i] != null; i = (i + 1) & (TABLE_SIZE - 1)) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        return KINDS[i];
+      }
+    }
+    return OTHER;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Translates between the HttpClient 4 request/response objects the {@link ProxyServlet} hooks work
+ * with and the JDK's {@link java.net.http.HttpClient}.
+ */
+final class JdkClientSupport {
+
+  /**
+   * Headers the JDK client refuses to have set; it manages them itself.  Which ones varies across
+   * JDK releases (Java 11 also refuses Date, From, Origin, Referer, Via and Warning), so those it
+   * refuses besides these are added as they're found; see {@link #toJdkRequest}.
+   */
+  private static final Set<String> restrictedHeaders =
+          new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER);
+  static {
+    restrictedHeaders.add("Connection");
+    restrictedHeaders.add("Content-Length");
+    restrictedHeaders.add("Expect");
+    restrictedHeaders.add("Host");
+    restrictedHeaders.add("Upgrade");
+  }
+
+  private JdkClientSupport() {
+  }
+
+  /**
+   * Builds a JDK request equivalent to {@code proxyRequest}.  Its entity, if any, is streamed from
+   * {@link HttpEntity#getContent()}.
+   */
+  static java.net.http.HttpRequest toJdkRequest(HttpRequest proxyRequest, Duration timeout) {
+    return toJdkRequest(proxyRequest, newBodyPublisher(proxyRequest), timeout);
+  }
+
+  static java.net.http.HttpRequest toJdkRequest(HttpRequest proxyRequest, BodyPublisher body,
+                                                Duration timeout) {
+    String uri = proxyRequest.getRequestLine().getUri();
+    int fragIdx = uri.indexOf('#');
+    if (fragIdx >= 0) {
+      uri = uri.substring(0, fragIdx);//the JDK client won't send it anyway
+    }
+    java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder(URI.create(uri))
+            .method(proxyRequest.getRequestLine().getMethod(), body);
+    if (timeout != null) {
+      builder.timeout(timeout);
+    }
+    for (Header header : proxyRequest.getAllHeaders()) {
+      if (restrictedHeaders.contains(header.getName())) {
+        continue;
+      }
+      try {
+        builder.header(header.getName(), header.getValue());
+      } catch (IllegalArgumentException e) {
+        // A header this JDK doesn't send, or an invalid one; the request goes without it
+        if (String.valueOf(e.getMessage()).contains("restricted")) {
+          restrictedHeaders.add(header.getName());
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  private static BodyPublisher newBodyPublisher(HttpRequest proxyRequest) {
+    if (!(proxyRequest instanceof HttpEntityEnclosingRequest)) {
+      return BodyPublishers.noBody();
+    }
+    HttpEntity entity = ((HttpEntityEnclosingRequest) proxyRequest).getEntity();
+    if (entity == null) {
+      return BodyPublishers.noBody();
+    }
+    return newBodyPublisher(entity);
+  }
+
+  /** Streams the entity's content, which is read with blocking I/O. */
+  static BodyPublisher newBodyPublisher(final HttpEntity entity) {
+    BodyPublisher publisher = BodyPublishers.ofInputStream(() -> {
+      try {
+        return entity.getContent();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    long contentLength = entity.getContentLength();
+    return contentLength >= 0 ? BodyPublishers.fromPublisher(publisher, contentLength) : publisher;
+  }
+
+  /**
+   * Exposes the status line and headers of a JDK response as an HttpClient 4 response, without an
+   * entity, so that it can be passed to
+   * {@link ProxyServlet#copyResponseHeaders(HttpResponse, jakarta.servlet.http.HttpServletRequest, jakarta.servlet.http.HttpServletResponse)}.
+   */
+  static HttpResponse toProxyResponse(ResponseInfo responseInfo) {
+    return toProxyResponse(responseInfo.version(), responseInfo.statusCode(), responseInfo.headers());
+  }
+
+  /** Exposes a JDK response as an HttpClient 4 response, with its body as a streamed entity. */
+  static HttpResponse toProxyResponse(java.net.http.HttpResponse<InputStream> response) {
+    HttpResponse proxyResponse = toProxyResponse(response.version(), response.statusCode(), response.headers());
+    long contentLength = response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1L);
+    InputStreamEntity entity = new InputStreamEntity(response.body(), contentLength);
+    entity.setChunked(contentLength < 0);//i.e. streamed, which is all HTTP/2 knows
+    response.headers().firstValue(HttpHeaders.CONTENT_TYPE).ifPresent(entity::setContentType);
+    response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).ifPresent(entity::setContentEncoding);
+    proxyResponse.setEntity(entity);
+    return proxyResponse;
+  }
+
+  private static HttpResponse toProxyResponse(HttpClient.Version jdkVersion, int statusCode,
+                                              java.net.http.HttpHeaders headers) {
+    HttpVersion version = jdkVersion == HttpClient.Version.HTTP_2
+            ? new HttpVersion(2, 0) : HttpVersion.HTTP_1_1;
+    HttpResponse proxyResponse = new BasicHttpResponse(version, statusCode, null);
+    for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+      String headerName = header.getKey();
+      if (headerName.startsWith(":")) {
+        continue;//HTTP/2 pseudo-header
+      }
+      for (String headerValue : header.getValue()) {
+        proxyResponse.addHeader(headerName, headerValue);
+      }
+    }
+    return proxyResponse;
+  }
+}
@@ -17,27 +17,48 @@
 package org.mitre.dsmiley.httpproxy;
 
 import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.HeaderGroup;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.util.EntityUtils;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -45,12 +66,33 @@ import jakarta.servlet.http.HttpServletResponse;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
 import java.net.HttpCookie;
+import java.net.ProxySelector;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
-import java.util.Formatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * An HTTP reverse proxy/gateway servlet. It is designed to be extended for customization
@@ -90,6 +132,12 @@ public class ProxyServlet extends HttpServlet {
   /** A boolean parameter name to have auto-handle redirects */
   public static final String P_HANDLEREDIRECTS = "http.protocol.handle-redirects"; // ClientPNames.HANDLE_REDIRECTS
 
+  /**
+   * A boolean parameter to rewrite the URLs pointing to the target in the Content-Location, Refresh
+   * and Link response headers too, like Location always is.  Defaults to false.
+   */
+  public static final String P_REWRITEURLHEADERS = "rewriteUrlHeaders";
+
   /** An integer parameter name to set the socket connection timeout (millis) */
   public static final String P_CONNECTTIMEOUT = "http.socket.timeout"; // CoreConnectionPNames.SO_TIMEOUT
 
@@ -102,6 +150,59 @@ public class ProxyServlet extends HttpServlet {
   /** An integer parameter name to set max connection number */
   public static final String P_MAXCONNECTIONS = "http.maxConnections";
 
+  /**
+   * An integer parameter name to set the max connection number per route (target host), so that
+   * one busy host can't take all {@link #P_MAXCONNECTIONS}.  Defaults to {@link #P_MAXCONNECTIONS}.
+   */
+  public static final String P_MAXCONNECTIONSPERROUTE = "http.maxConnectionsPerRoute";
+
+  /**
+   * A parameter name to override the max connection number of some routes, as a comma separated
+   * list of {@code [scheme://]host[:port]=max}, e.g. "backend1:8080=50,https://backend2=10".
+   */
+  public static final String P_ROUTEMAXCONNECTIONS = "http.routeMaxConnections";
+
+  /** An integer parameter name to set the time to live of pooled connections (millis) */
+  public static final String P_CONNECTIONTTL = "http.connectionTTL";
+
+  /** An integer parameter name to close pooled connections idle for longer than this (millis) */
+  public static final String P_IDLECONNECTIONTIMEOUT = "http.idleConnectionTimeout";
+
+  /**
+   * An integer parameter name to set how often the background evictor closes expired and idle
+   * pooled connections (millis).  It's enabled by this, {@link #P_CONNECTIONTTL} or
+   * {@link #P_IDLECONNECTIONTIMEOUT}, and defaults to the idle timeout, or 5 seconds.
+   */
+  public static final String P_EVICTIONINTERVAL = "http.evictionInterval";
+
+  /**
+   * An integer parameter name to set after how long idle a pooled connection is checked for being
+   * stale before reuse (millis); HttpClient's default is 2000.  Negative disables the check.
+   */
+  public static final String P_VALIDATEAFTERINACTIVITY = "http.validateAfterInactivity";
+
+  /**
+   * An integer parameter name to open this many connections to the target during init, so the
+   * first requests don't pay for connecting; they're reopened when closed, e.g. by eviction, every
+   * {@link #P_PREWARMINTERVAL}.  It's capped at the route's connection limit.
+   */
+  public static final String P_PREWARMCONNECTIONS = "http.prewarm.connections";
+
+  /**
+   * A parameter name for a path on the target, e.g. "/health", requested with HEAD on each
+   * pre-warmed connection.  Without it, connections are only opened (including any TLS handshake).
+   */
+  public static final String P_PREWARMPATH = "http.prewarm.path";
+
+  /** An integer parameter name to set how long pre-warming may take (millis); defaults to 5000. */
+  public static final String P_PREWARMTIMEOUT = "http.prewarm.timeout";
+
+  /**
+   * An integer parameter name to set how often closed pre-warmed connections are reopened
+   * (millis); defaults to 30000.  0 or less only pre-warms during init.
+   */
+  public static final String P_PREWARMINTERVAL = "http.prewarm.interval";
+
   /** A boolean parameter whether to use JVM-defined system properties to configure various networking aspects. */
   public static final String P_USESYSTEMPROPERTIES = "useSystemProperties";
 
@@ -111,10 +212,148 @@ public class ProxyServlet extends HttpServlet {
   /** The parameter name for the target (destination) URI to proxy to. */
   public static final String P_TARGET_URI = "targetUri";
 
+  /**
+   * A boolean parameter to proxy requests asynchronously: the container thread is released while the
+   * upstream exchange runs on a non-blocking client. The servlet must be declared async-supported.
+   */
+  public static final String P_ASYNC = "async";
+
+  /**
+   * A boolean parameter to stream request and response bodies with Servlet 3.1 non-blocking I/O
+   * ({@code ReadListener}/{@code WriteListener}) when {@link #P_ASYNC} is enabled, so that neither a
+   * slow client nor a slow backend holds a thread.  Filters that wrap the servlet streams must
+   * support non-blocking I/O.
+   */
+  public static final String P_NONBLOCKINGIO = "nonBlockingIO";
+
+  /**
+   * A boolean parameter to run the blocking proxy exchange on a Java 21 virtual thread instead of a
+   * container thread.  The servlet must be declared async-supported.  The exchanges with the target
+   * are bounded by the connection pool's limits, see {@link #P_MAXCONNECTIONS}.
+   */
+  public static final String P_VIRTUALTHREADS = "virtualThreads";
+
+  /**
+   * A boolean parameter to talk to the target with HTTP/2 when it supports it (h2 via ALPN, or an
+   * h2c upgrade), so that concurrent requests are multiplexed over few connections.  It uses the
+   * JDK's client, in {@link #P_ASYNC} mode or not, which falls back to HTTP/1.1 per target.
+   */
+  public static final String P_HTTP2 = "http2";
+
+  /**
+   * The kind of {@link BufferPool} used to copy response bodies: "none" (the default; allocate per
+   * response), "threadLocal" or "striped".
+   */
+  public static final String P_BUFFERPOOL = "bufferPool";
+
+  /**
+   * A comma separated list of buffer size classes in bytes; defaults to "4096,16384,65536" when
+   * pooled, and "10240" (a single size) otherwise.
+   */
+  public static final String P_BUFFERSIZES = "bufferPool.sizes";
+
+  /**
+   * When to flush streamed (chunked) response bodies to the client; see
+   * {@link FlushPolicy#parse(String, java.util.concurrent.ScheduledExecutorService)}.  Defaults to
+   * "whenIdle".
+   */
+  public static final String P_FLUSHPOLICY = "flushPolicy";
+
+  /**
+   * A boolean parameter to replace the target URI with the servlet's URL in response bodies, as
+   * they stream through; see {@link BodyUrlRewriter}.  Bodies with a Content-Encoding are left
+   * alone, so enable {@link #P_HANDLECOMPRESSION} to have compressed ones decoded and rewritten.
+   * It applies to blocking (and {@link #P_VIRTUALTHREADS}) proxying.  Defaults to false.
+   */
+  public static final String P_REWRITEBODY = "rewriteBody";
+
+  /**
+   * The comma separated media types of the bodies {@link #P_REWRITEBODY} applies to; defaults to
+   * text/html, text/css, text/javascript, application/javascript, application/json,
+   * application/xml and text/xml.
+   */
+  public static final String P_REWRITEBODY_CONTENTTYPES = "rewriteBody.contentTypes";
+
+  /**
+   * A boolean parameter to keep an in-memory, shared {@link ResponseCache} of cacheable GET
+   * responses, honoring Cache-Control, Expires and Vary, and revalidating stale responses that have
+   * an ETag or Last-Modified.  It applies to blocking (and {@link #P_VIRTUALTHREADS}) proxying.
+   */
+  public static final String P_CACHE = "cache";
+
+  /** The maximum total size of the cached responses, in bytes; defaults to 64MB. */
+  public static final String P_CACHE_MAXSIZE = "cache.maxSize";
+
+  /** The maximum size of a response body to cache, in bytes; defaults to 1MB. */
+  public static final String P_CACHE_MAXENTRYSIZE = "cache.maxEntrySize";
+
+  /** Where to store cached bodies: "heap" (the default) or "direct" (off-heap). */
+  public static final String P_CACHE_STORAGE = "cache.storage";
+
+  /**
+   * How long after a cached response became stale it's still served, while it's refreshed in the
+   * background (millis); defaults to 0, but responses' stale-while-revalidate directives apply.
+   */
+  public static final String P_CACHE_STALEWHILEREVALIDATE = "cache.staleWhileRevalidate";
+
+  /**
+   * How long after a cached response became stale it's still served when the target fails or
+   * responds with 500, 502, 503 or 504 (millis); defaults to 0, but responses' stale-if-error
+   * directives apply.
+   */
+  public static final String P_CACHE_STALEIFERROR = "cache.staleIfError";
+
+  /**
+   * A boolean parameter to coalesce identical concurrent GET requests with a
+   * {@link RequestCoalescer}: one is sent to the target and the others get a copy of its response.
+   * It applies to blocking (and {@link #P_VIRTUALTHREADS}) proxying.
+   */
+  public static final String P_COALESCE = "coalesce";
+
+  /**
+   * A comma separated list of the request headers that, besides the URI, make requests different
+   * for {@link #P_COALESCE}; defaults to "Accept,Accept-Encoding,Accept-Language,Authorization,Cookie".
+   */
+  public static final String P_COALESCE_KEYHEADERS = "coalesce.keyHeaders";
+
+  /** The maximum size of a response body to share between coalesced requests, in bytes; defaults to 1MB. */
+  public static final String P_COALESCE_MAXBODYSIZE = "coalesce.maxBodySize";
+
+  /**
+   * How long a coalesced request waits for the identical one in flight before it's sent itself
+   * (millis); defaults to 5000.
+   */
+  public static final String P_COALESCE_TIMEOUT = "coalesce.timeout";
+
+  /**
+   * A boolean parameter to keep a {@link ValidatorIndex} of the ETag and Last-Modified of fresh
+   * responses, and answer matching conditional requests from clients with a 304 itself.  It
+   * applies to blocking (and {@link #P_VIRTUALTHREADS}) proxying.
+   */
+  public static final String P_VALIDATORINDEX = "validatorIndex";
+
+  /** The number of URIs the {@link #P_VALIDATORINDEX} has room for; defaults to 10000. */
+  public static final String P_VALIDATORINDEX_MAXENTRIES = "validatorIndex.maxEntries";
+
   protected static final String ATTR_TARGET_URI =
           ProxyServlet.class.getSimpleName() + ".targetUri";
   protected static final String ATTR_TARGET_HOST =
           ProxyServlet.class.getSimpleName() + ".targetHost";
+  /** The headers named in the client's Connection headers; see {@link ConnectionOptions}. */
+  private static final String ATTR_REQUEST_CONNECTION_OPTIONS =
+          ProxyServlet.class.getSimpleName() + ".requestConnectionOptions";
+  /** The {@link ResponseBodyTransformer}s applying to the response body, if any. */
+  private static final String ATTR_RESPONSE_BODY_TRANSFORMERS =
+          ProxyServlet.class.getSimpleName() + ".responseBodyTransformers";
+  /** Set when the response body is streamed by {@link #serviceAsync}, which doesn't transform it. */
+  private static final String ATTR_ASYNC_RESPONSE =
+          ProxyServlet.class.getSimpleName() + ".asyncResponse";
+  /** Set while the request holds one of the {@code upstreamPermits}; see {@link #serviceOnExecutor}. */
+  private static final String ATTR_UPSTREAM_PERMIT =
+          ProxyServlet.class.getSimpleName() + ".upstreamPermit";
+  /** The headers named in the target's Connection headers; see {@link ConnectionOptions}. */
+  private static final String ATTR_RESPONSE_CONNECTION_OPTIONS =
+          ProxyServlet.class.getSimpleName() + ".responseConnectionOptions";
 
   /* MISC */
 
@@ -125,13 +364,39 @@ public class ProxyServlet extends HttpServlet {
   protected boolean doPreserveHost = false;
   protected boolean doPreserveCookies = false;
   protected boolean doPreserveCookiePath = false;
+  /** "!Proxy!" and the servlet name; see {@link #getCookieNamePrefix(String)}. */
+  private String cookieNamePrefix;
+  /** Whether a subclass computes the prefix per cookie, so it can't be cached. */
+  private boolean cookieNamePrefixOverridden;
+  /** Whether a subclass customizes the servlet {@link Cookie}s; else Set-Cookie is rewritten as text. */
+  private boolean servletCookiesOverridden;
+  /** Whether a subclass overrides {@link #copyProxyCookie}, which then also gets Set-Cookie2. */
+  private boolean copyProxyCookieOverridden;
   protected boolean doHandleRedirects = false;
+  protected boolean doRewriteUrlHeaders = false;
   protected boolean useSystemProperties = true;
   protected boolean doHandleCompression = false;
+  protected boolean doRewriteBody = false;
+  protected String[] rewriteBodyContentTypes = {"text/html", "text/css", "text/javascript",
+          "application/javascript", "application/json", "application/xml", "text/xml"};
+  protected boolean doAsync = false;
+  protected boolean doNonBlockingIO = false;
+  protected boolean useVirtualThreads = false;
+  protected boolean doHttp2 = false;
   protected int connectTimeout = -1;
   protected int readTimeout = -1;
   protected int connectionRequestTimeout = -1;
   protected int maxConnections = -1;
+  protected int maxConnectionsPerRoute = -1;
+  protected String routeMaxConnections;
+  protected int connectionTTL = -1;
+  protected int idleConnectionTimeout = -1;
+  protected int evictionInterval = -1;
+  protected Integer validateAfterInactivity;
+  protected int prewarmConnections = 0;
+  protected String prewarmPath;
+  protected int prewarmTimeout = 5000;
+  protected int prewarmInterval = 30000;
 
   //These next 3 are cached here, and should only be referred to in initialization logic. See the
   // ATTR_* parameters.
@@ -141,6 +406,33 @@ public class ProxyServlet extends HttpServlet {
   protected HttpHost targetHost;//URIUtils.extractHost(targetUriObj);
 
   private HttpClient proxyClient;
+  private PoolingHttpClientConnectionManager connectionManager;
+  private IdleConnectionEvictor connectionEvictor;
+  private ScheduledExecutorService connectionWarmer;
+  private java.net.http.HttpClient jdkProxyClient;
+  private ExecutorService proxyExecutor;
+  private BufferPool bufferPool;
+  private ResponseCache responseCache;
+  private RequestCoalescer requestCoalescer;
+  private ValidatorIndex validatorIndex;
+  private ExecutorService cacheRefresher;
+  /** The absolute URLs of this servlet seen in requests; see {@link #getServletUrl}. */
+  private final AtomicReferenceArray<ServletUrl> servletUrls = new AtomicReferenceArray<>(16);
+  private FlushPolicy flushPolicy;
+  private List<ResponseBodyTransformer> responseBodyTransformers;
+  /**
+   * By target URI, the least recently used ones evicted beyond 256 (e.g. URITemplateProxyServlet
+   * with many targets); see {@link #P_REWRITEBODY}.  Guarded by itself.
+   */
+  private final Map<String, BodyUrlRewriter> bodyUrlRewriters =
+          new LinkedHashMap<String, BodyUrlRewriter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BodyUrlRewriter> eldest) {
+              return size() > 256;
+            }
+          };
+  private ScheduledExecutorService flushScheduler;
+  private Semaphore upstreamPermits;
 
   @Override
   public String getServletInfo() {
@@ -186,6 +478,13 @@ public class ProxyServlet extends HttpServlet {
       this.doPreserveCookies = Boolean.parseBoolean(preserveCookiesString);
     }
 
+    this.cookieNamePrefix = "!Proxy!" + getServletConfig().getServletName();
+    this.cookieNamePrefixOverridden = overrides("getCookieNamePrefix", String.class);
+    this.servletCookiesOverridden = overrides("createProxyCookie", HttpServletRequest.class, HttpCookie.class)
+            || overrides("getProxyCookieName", HttpCookie.class);
+    this.copyProxyCookieOverridden = overrides("copyProxyCookie",
+            HttpServletRequest.class, HttpServletResponse.class, String.class);
+
     String preserveCookiePathString = getConfigParam(P_PRESERVECOOKIEPATH);
     if (preserveCookiePathString != null) {
       this.doPreserveCookiePath = Boolean.parseBoolean(preserveCookiePathString);
@@ -196,6 +495,11 @@ public class ProxyServlet extends HttpServlet {
       this.doHandleRedirects = Boolean.parseBoolean(handleRedirectsString);
     }
 
+    String rewriteUrlHeadersString = getConfigParam(P_REWRITEURLHEADERS);
+    if (rewriteUrlHeadersString != null) {
+      this.doRewriteUrlHeaders = Boolean.parseBoolean(rewriteUrlHeadersString);
+    }
+
     String connectTimeoutString = getConfigParam(P_CONNECTTIMEOUT);
     if (connectTimeoutString != null) {
       this.connectTimeout = Integer.parseInt(connectTimeoutString);
@@ -216,6 +520,50 @@ public class ProxyServlet extends HttpServlet {
       this.maxConnections = Integer.parseInt(maxConnections);
     }
 
+    String maxConnectionsPerRoute = getConfigParam(P_MAXCONNECTIONSPERROUTE);
+    if (maxConnectionsPerRoute != null) {
+      this.maxConnectionsPerRoute = Integer.parseInt(maxConnectionsPerRoute);
+    }
+
+    this.routeMaxConnections = getConfigParam(P_ROUTEMAXCONNECTIONS);
+
+    String connectionTTLString = getConfigParam(P_CONNECTIONTTL);
+    if (connectionTTLString != null) {
+      this.connectionTTL = Integer.parseInt(connectionTTLString);
+    }
+
+    String idleConnectionTimeoutString = getConfigParam(P_IDLECONNECTIONTIMEOUT);
+    if (idleConnectionTimeoutString != null) {
+      this.idleConnectionTimeout = Integer.parseInt(idleConnectionTimeoutString);
+    }
+
+    String evictionIntervalString = getConfigParam(P_EVICTIONINTERVAL);
+    if (evictionIntervalString != null) {
+      this.evictionInterval = Integer.parseInt(evictionIntervalString);
+    }
+
+    String validateAfterInactivityString = getConfigParam(P_VALIDATEAFTERINACTIVITY);
+    if (validateAfterInactivityString != null) {
+      this.validateAfterInactivity = Integer.parseInt(validateAfterInactivityString);
+    }
+
+    String prewarmConnectionsString = getConfigParam(P_PREWARMCONNECTIONS);
+    if (prewarmConnectionsString != null) {
+      this.prewarmConnections = Integer.parseInt(prewarmConnectionsString);
+    }
+
+    this.prewarmPath = getConfigParam(P_PREWARMPATH);
+
+    String prewarmTimeoutString = getConfigParam(P_PREWARMTIMEOUT);
+    if (prewarmTimeoutString != null) {
+      this.prewarmTimeout = Integer.parseInt(prewarmTimeoutString);
+    }
+
+    String prewarmIntervalString = getConfigParam(P_PREWARMINTERVAL);
+    if (prewarmIntervalString != null) {
+      this.prewarmInterval = Integer.parseInt(prewarmIntervalString);
+    }
+
     String useSystemPropertiesString = getConfigParam(P_USESYSTEMPROPERTIES);
     if (useSystemPropertiesString != null) {
       this.useSystemProperties = Boolean.parseBoolean(useSystemPropertiesString);
@@ -226,9 +574,165 @@ public class ProxyServlet extends HttpServlet {
       this.doHandleCompression = Boolean.parseBoolean(doHandleCompression);
     }
 
+    String rewriteBodyString = getConfigParam(P_REWRITEBODY);
+    if (rewriteBodyString != null) {
+      this.doRewriteBody = Boolean.parseBoolean(rewriteBodyString);
+    }
+
+    String rewriteBodyContentTypesString = getConfigParam(P_REWRITEBODY_CONTENTTYPES);
+    if (rewriteBodyContentTypesString != null) {
+      this.rewriteBodyContentTypes = rewriteBodyContentTypesString.trim().split("\\s*,\\s*");
+    }
+
+    String doAsyncString = getConfigParam(P_ASYNC);
+    if (doAsyncString != null) {
+      this.doAsync = Boolean.parseBoolean(doAsyncString);
+    }
+
+    String doNonBlockingIOString = getConfigParam(P_NONBLOCKINGIO);
+    if (doNonBlockingIOString != null) {
+      this.doNonBlockingIO = Boolean.parseBoolean(doNonBlockingIOString);
+    }
+
+    String doHttp2String = getConfigParam(P_HTTP2);
+    if (doHttp2String != null) {
+      this.doHttp2 = Boolean.parseBoolean(doHttp2String);
+    }
+
+    String useVirtualThreadsString = getConfigParam(P_VIRTUALTHREADS);
+    if (useVirtualThreadsString != null) {
+      this.useVirtualThreads = Boolean.parseBoolean(useVirtualThreadsString);
+    }
+
+    bufferPool = createBufferPool();
+    flushPolicy = createFlushPolicy();
+    responseBodyTransformers = createResponseBodyTransformers();
+    responseCache = createResponseCache();
+    if (responseCache != null) {
+      cacheRefresher = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, getServletName() + "-cache-refresher");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    requestCoalescer = createRequestCoalescer();
+    validatorIndex = createValidatorIndex();
+
     initTarget();//sets target*
 
     proxyClient = createHttpClient();
+    if (connectionManager != null && isEvictionEnabled()) {
+      connectionEvictor = createConnectionEvictor(connectionManager);
+      connectionEvictor.start();
+    }
+    if (connectionManager != null && prewarmConnections > 0 && targetHost != null) {
+      warmUpConnections();
+      if (prewarmInterval > 0) {
+        connectionWarmer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, getServletName() + "-connection-warmer");
+          thread.setDaemon(true);
+          return thread;
+        });
+        connectionWarmer.scheduleWithFixedDelay(this::warmUpConnections, prewarmInterval, prewarmInterval,
+                TimeUnit.MILLISECONDS);
+      }
+    }
+    if (doAsync || doHttp2) {
+      jdkProxyClient = createJdkHttpClient();
+    }
+    if (useVirtualThreads) {
+      proxyExecutor = createProxyExecutor();
+      if (proxyExecutor != null && connectionManager != null) {
+        int permits = connectionManager.getMaxTotal();
+        if (targetHost != null) {
+          permits = Math.min(permits, connectionManager.getMaxPerRoute(toRoute(targetHost)));
+        }
+        upstreamPermits = new Semaphore(permits, true);
+      }
+    }
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the pool of buffers that
+   * response bodies are copied through.
+   * @see #P_BUFFERPOOL
+   */
+  protected BufferPool createBufferPool() throws ServletException {
+    String kind = getConfigParam(P_BUFFERPOOL);
+    boolean pooled = kind != null && !kind.equals("none");
+    // Unpooled, a buffer is allocated per response; keep it small, as it has always been
+    int[] sizes = pooled ? BufferPool.defaultSizes() : BufferPool.unpooledSizes();
+    String sizesString = getConfigParam(P_BUFFERSIZES);
+    if (sizesString != null) {
+      String[] sizeStrings = sizesString.split(",");
+      sizes = new int[sizeStrings.length];
+      for (int i = 0; i < sizeStrings.length; i++) {
+        sizes[i] = Integer.parseInt(sizeStrings[i].trim());
+      }
+    }
+    if (!pooled) {
+      return BufferPool.none(sizes);
+    } else if (kind.equals("threadLocal")) {
+      return BufferPool.threadLocal(sizes);
+    } else if (kind.equals("striped")) {
+      return BufferPool.striped(sizes, 4);
+    }
+    throw new ServletException(P_BUFFERPOOL + " must be one of none, threadLocal, striped; not " + kind);
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the policy deciding when
+   * streamed response bodies are flushed.
+   * @see #P_FLUSHPOLICY
+   */
+  protected FlushPolicy createFlushPolicy() throws ServletException {
+    String spec = getConfigParam(P_FLUSHPOLICY);
+    if (spec == null || spec.equals("whenIdle")) {
+      /*-
+       * Issue in Apache http client/JDK: if the stream from client is
+       * compressed, apache http client will delegate to GzipInputStream.
+       * The #available implementation of InflaterInputStream (parent of
+       * GzipInputStream) return 1 until EOF is reached. This is not
+       * consistent with InputStream#available, which defines:
+       *
+       *   A single read or skip of this many bytes will not block,
+       *   but may read or skip fewer bytes.
+       *
+       *  To work around this, a flush is issued always if compression
+       *  is handled by apache http client
+       */
+      return doHandleCompression ? FlushPolicy.immediate() : FlushPolicy.whenIdle();
+    }
+    if (FlushPolicy.needsScheduler(spec)) {
+      flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, getServletName() + "-flush");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    try {
+      return FlushPolicy.parse(spec, flushScheduler);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException(P_FLUSHPOLICY + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the chain response bodies
+   * go through, in order; it holds the one of {@link #P_REWRITEBODY} if enabled.  Sub-classes can
+   * add their own to the returned list.
+   */
+  protected List<ResponseBodyTransformer> createResponseBodyTransformers() throws ServletException {
+    List<ResponseBodyTransformer> transformers = new ArrayList<>();
+    if (doRewriteBody) {
+      transformers.add(new BodyUrlRewriting());
+    }
+    return transformers;
+  }
+
+  /** The pool of buffers response bodies are copied through, e.g. to monitor its hit rate. */
+  public BufferPool getBufferPool() {
+    return bufferPool;
   }
 
   /**
@@ -283,6 +787,12 @@ public class ProxyServlet extends HttpServlet {
 
     clientBuilder.setMaxConnTotal(maxConnections);
     clientBuilder.setMaxConnPerRoute(maxConnections);
+    if (maxConnectionsPerRoute > 0 || routeMaxConnections != null || validateAfterInactivity != null
+            || isEvictionEnabled() || prewarmConnections > 0 || useVirtualThreads) {
+      // the builder has no such settings; a manager given to it ignores the settings above
+      connectionManager = createConnectionManager();
+      clientBuilder.setConnectionManager(connectionManager);
+    }
     if(! doHandleCompression) {
       clientBuilder.disableContentCompression();
     }
@@ -292,6 +802,170 @@ public class ProxyServlet extends HttpServlet {
     return buildHttpClient(clientBuilder);
   }
 
+  /**
+   * Called from {@link #createHttpClient()} when connection pool settings the builder doesn't have
+   * are configured: {@link #P_MAXCONNECTIONSPERROUTE}, {@link #P_ROUTEMAXCONNECTIONS},
+   * {@link #P_VALIDATEAFTERINACTIVITY}, eviction or pre-warming.  It's configured like the one
+   * {@link HttpClientBuilder} would create, so builder settings affecting the connection manager,
+   * such as an SSL context, must be applied here instead.
+   */
+  protected PoolingHttpClientConnectionManager createConnectionManager() {
+    Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", useSystemProperties
+                    ? SSLConnectionSocketFactory.getSystemSocketFactory()
+                    : SSLConnectionSocketFactory.getSocketFactory())
+            .build();
+    PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(
+            socketFactories, null, null, null, connectionTTL, TimeUnit.MILLISECONDS);
+    SocketConfig socketConfig = buildSocketConfig();
+    if (socketConfig != null) {
+      manager.setDefaultSocketConfig(socketConfig);
+    }
+    if (validateAfterInactivity != null) {
+      manager.setValidateAfterInactivity(validateAfterInactivity);
+    }
+    // the defaults are HttpClientBuilder's
+    int maxTotal = maxConnections > 0 ? maxConnections : 20;
+    int maxPerRoute = maxConnections > 0 ? maxConnections : 2;
+    if (maxConnections <= 0 && useSystemProperties
+            && "true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+      maxPerRoute = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+      maxTotal = 2 * maxPerRoute;
+    }
+    manager.setMaxTotal(maxTotal);
+    manager.setDefaultMaxPerRoute(maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : maxPerRoute);
+    if (routeMaxConnections != null) {
+      for (String routeMax : routeMaxConnections.split(",")) {
+        int eqIdx = routeMax.lastIndexOf('=');
+        if (eqIdx < 0) {
+          throw new IllegalArgumentException(P_ROUTEMAXCONNECTIONS + ": expected host=max, got " + routeMax);
+        }
+        HttpHost host = HttpHost.create(routeMax.substring(0, eqIdx).trim());
+        manager.setMaxPerRoute(toRoute(host), Integer.parseInt(routeMax.substring(eqIdx + 1).trim()));
+      }
+    }
+    return manager;
+  }
+
+  private boolean isEvictionEnabled() {
+    return connectionTTL > 0 || idleConnectionTimeout > 0 || evictionInterval > 0;
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the thread closing expired
+   * connections, and those idle for longer than {@link #P_IDLECONNECTIONTIMEOUT}, every
+   * {@link #P_EVICTIONINTERVAL}.  It's started by init and shut down by {@link #destroy()}.
+   */
+  protected IdleConnectionEvictor createConnectionEvictor(HttpClientConnectionManager manager) {
+    long interval = evictionInterval > 0 ? evictionInterval
+            : idleConnectionTimeout > 0 ? idleConnectionTimeout : 5000;
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, getServletName() + "-connection-evictor");
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new IdleConnectionEvictor(manager, threadFactory, interval, TimeUnit.MILLISECONDS,
+            idleConnectionTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Opens connections to the target until {@link #P_PREWARMCONNECTIONS} are pooled or in use, up to
+   * the route's limit, by leasing new ones all at once from the pool, so each is distinct.  The pool
+   * hands out idle connections before opening any, so nothing is done while the route has some:
+   * leasing them would reset their idle time, keeping them from being evicted.  Only free capacity
+   * is leased, so requests don't wait for it.  Called during init, and then every
+   * {@link #P_PREWARMINTERVAL} to replace connections that were closed.  Failures are logged, not
+   * thrown.
+   */
+  protected void warmUpConnections() {
+    HttpRoute route = toRoute(targetHost);
+    PoolStats stats = connectionManager.getStats(route);
+    PoolStats totalStats = connectionManager.getTotalStats();
+    int toLease = Math.min(Math.min(prewarmConnections, stats.getMax()) - stats.getLeased(),
+            totalStats.getMax() - totalStats.getLeased() - totalStats.getAvailable());
+    if (stats.getAvailable() > 0 || toLease <= 0) {
+      return;
+    }
+    long deadline = System.currentTimeMillis() + prewarmTimeout;
+    List<HttpClientConnection> leased = new ArrayList<>();
+    int opened = 0;
+    try {
+      for (int i = 0; i < toLease; i++) {
+        PoolStats current = connectionManager.getStats(route);
+        if (current.getAvailable() > 0 || current.getLeased() + current.getPending() >= current.getMax()) {
+          break;//requests took the capacity meanwhile; don't queue ahead of them
+        }
+        HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                .get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        leased.add(connection);
+        if (!connection.isOpen()) {
+          HttpClientContext context = HttpClientContext.create();
+          connectionManager.connect(connection, route,
+                  (int) Math.max(1, deadline - System.currentTimeMillis()), context);
+          connectionManager.routeComplete(connection, route, context);
+          opened++;
+          if (prewarmPath != null) {
+            warmUpRequest(connection, context);
+          }
+        }
+      }
+    } catch (Exception e) {
+      log("While pre-warming connections to " + targetHost + ": " + e, e);
+    } finally {
+      for (HttpClientConnection connection : leased) {
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (doLog && opened > 0) {
+      log("Pre-warmed " + opened + " connections to " + targetHost);
+    }
+  }
+
+  private void warmUpRequest(HttpClientConnection connection, HttpClientContext context)
+          throws IOException, HttpException {
+    HttpRequest request = new BasicHttpRequest("HEAD", prewarmPath, HttpVersion.HTTP_1_1);
+    request.setHeader(HttpHeaders.HOST, targetHost.toHostString());
+    context.setTargetHost(targetHost);
+    context.setAttribute(HttpClientContext.HTTP_REQUEST, request);//for the reuse strategy
+    HttpResponse response = new HttpRequestExecutor().execute(request, connection, context);
+    EntityUtils.consume(response.getEntity());
+    if (!DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context)) {
+      connection.close();//not reusable; the pool drops it
+    }
+  }
+
+  /** The route of a direct connection to {@code host}, as HttpClient's route planner makes it. */
+  private static HttpRoute toRoute(HttpHost host) {
+    boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+    if (host.getPort() < 0) {
+      host = new HttpHost(host.getHostName(), secure ? 443 : 80, host.getSchemeName());
+    }
+    return new HttpRoute(host, null, secure);
+  }
+
+  /**
+   * Statistics (leased, pending and available connections) of each route of the connection pool,
+   * if it was created by {@link #createConnectionManager()}; else an empty map.
+   */
+  public Map<HttpRoute, PoolStats> getPoolStats() {
+    Map<HttpRoute, PoolStats> stats = new LinkedHashMap<>();
+    if (connectionManager != null) {
+      for (HttpRoute route : connectionManager.getRoutes()) {
+        stats.put(route, connectionManager.getStats(route));
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Statistics of the whole connection pool, if it was created by
+   * {@link #createConnectionManager()}; else null.
+   */
+  public PoolStats getTotalPoolStats() {
+    return connectionManager == null ? null : connectionManager.getTotalStats();
+  }
+
   /**
    * Creates a HttpClient from the given builder. Meant as postprocessor
    * to possibly adapt the client builder prior to creating the
@@ -322,8 +996,79 @@ public class ProxyServlet extends HttpServlet {
     return proxyClient;
   }
 
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} when {@link #P_ASYNC} or
+   * {@link #P_HTTP2} is enabled.  The JDK client is used because its exchanges are non-blocking, and
+   * it multiplexes HTTP/2; the request and response still pass through the same header and URL
+   * rewriting hooks as with {@link #createHttpClient()}.
+   * Note that this client manages the Host header itself, so {@link #P_PRESERVEHOST} has no effect,
+   * and it never decompresses responses, so they are passed through as-is.
+   */
+  protected java.net.http.HttpClient createJdkHttpClient() {
+    java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+            .version(doHttp2 ? java.net.http.HttpClient.Version.HTTP_2 : java.net.http.HttpClient.Version.HTTP_1_1)
+            .followRedirects(doHandleRedirects ?
+                    java.net.http.HttpClient.Redirect.NORMAL : java.net.http.HttpClient.Redirect.NEVER);
+    if (connectTimeout > 0) {
+      builder.connectTimeout(Duration.ofMillis(connectTimeout));
+    }
+    if (useSystemProperties) {
+      builder.proxy(ProxySelector.getDefault());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} when {@link #P_VIRTUALTHREADS} is
+   * enabled.  Returns a virtual-thread-per-task executor, or null if the JVM doesn't support virtual
+   * threads, in which case requests are proxied on the container thread.
+   */
+  protected ExecutorService createProxyExecutor() {
+    try {
+      // Looked up reflectively since we compile for Java 11
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      log(P_VIRTUALTHREADS + " requires Java 21 or later; proxying on container threads instead");
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to create a virtual thread executor", e);
+    }
+  }
+
+  /**
+   * The JDK client used when {@link #P_ASYNC} or {@link #P_HTTP2} is enabled, otherwise null.
+   * @see #createJdkHttpClient()
+   */
+  protected java.net.http.HttpClient getJdkProxyClient() {
+    return jdkProxyClient;
+  }
+
   @Override
   public void destroy() {
+    if (connectionWarmer != null) {
+      connectionWarmer.shutdownNow();
+    }
+    if (connectionEvictor != null) {
+      connectionEvictor.shutdown();
+      try {
+        connectionEvictor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    //Let in-flight exchanges complete while the clients they use are still open
+    if (proxyExecutor != null) {
+      proxyExecutor.shutdown();
+      try {
+        if (!proxyExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+          proxyExecutor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        proxyExecutor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
     //Usually, clients implement Closeable:
     if (proxyClient instanceof Closeable) {
       try {
@@ -336,6 +1081,14 @@ public class ProxyServlet extends HttpServlet {
       if (proxyClient != null)
         proxyClient.getConnectionManager().shutdown();
     }
+    //the JDK client has no close() before Java 21; dropping it lets its threads wind down
+    jdkProxyClient = null;
+    if (flushScheduler != null) {
+      flushScheduler.shutdownNow();
+    }
+    if (cacheRefresher != null) {
+      cacheRefresher.shutdownNow();
+    }
     super.destroy();
   }
 
@@ -367,10 +1120,132 @@ public class ProxyServlet extends HttpServlet {
 
     setXForwardedForHeader(servletRequest, proxyRequest);
 
+    if (doAsync && jdkProxyClient != null && servletRequest.isAsyncSupported()) {
+      serviceAsync(servletRequest, servletResponse, proxyRequest);
+      return;
+    }
+    if (proxyExecutor != null && servletRequest.isAsyncSupported()) {
+      serviceOnExecutor(servletRequest, servletResponse, proxyRequest);
+      return;
+    }
+
+    executeProxyRequest(servletRequest, servletResponse, proxyRequest);
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the cache of responses, or
+   * return null if there's to be none.
+   * @see #P_CACHE
+   */
+  protected ResponseCache createResponseCache() {
+    if (!Boolean.parseBoolean(getConfigParam(P_CACHE))) {
+      return null;
+    }
+    long maxSize = 64L * 1024 * 1024;
+    String maxSizeString = getConfigParam(P_CACHE_MAXSIZE);
+    if (maxSizeString != null) {
+      maxSize = Long.parseLong(maxSizeString);
+    }
+    long maxEntrySize = Math.min(maxSize, 1024 * 1024);
+    String maxEntrySizeString = getConfigParam(P_CACHE_MAXENTRYSIZE);
+    if (maxEntrySizeString != null) {
+      maxEntrySize = Long.parseLong(maxEntrySizeString);
+    }
+    String storageString = getConfigParam(P_CACHE_STORAGE);
+    ResponseCache.Storage storage = storageString == null ? ResponseCache.Storage.HEAP
+            : ResponseCache.Storage.valueOf(storageString.toUpperCase(Locale.ROOT));
+    ResponseCache cache = new ResponseCache(maxSize, maxEntrySize, storage);
+    String staleWhileRevalidateString = getConfigParam(P_CACHE_STALEWHILEREVALIDATE);
+    if (staleWhileRevalidateString != null) {
+      cache.setStaleWhileRevalidate(Long.parseLong(staleWhileRevalidateString));
+    }
+    String staleIfErrorString = getConfigParam(P_CACHE_STALEIFERROR);
+    if (staleIfErrorString != null) {
+      cache.setStaleIfError(Long.parseLong(staleIfErrorString));
+    }
+    return cache;
+  }
+
+  /** The cache of responses, or null if {@link #P_CACHE} isn't enabled. */
+  public ResponseCache getResponseCache() {
+    return responseCache;
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the coalescer of identical
+   * requests, or return null if there's to be none.
+   * @see #P_COALESCE
+   */
+  protected RequestCoalescer createRequestCoalescer() {
+    if (!Boolean.parseBoolean(getConfigParam(P_COALESCE))) {
+      return null;
+    }
+    String keyHeadersString = getConfigParam(P_COALESCE_KEYHEADERS);
+    if (keyHeadersString == null) {
+      keyHeadersString = "Accept,Accept-Encoding,Accept-Language,Authorization,Cookie";
+    }
+    List<String> keyHeaders = new ArrayList<>();
+    for (String keyHeader : keyHeadersString.split(",")) {
+      if (!keyHeader.trim().isEmpty()) {
+        keyHeaders.add(keyHeader.trim());
+      }
+    }
+    long maxBodySize = 1024 * 1024;
+    String maxBodySizeString = getConfigParam(P_COALESCE_MAXBODYSIZE);
+    if (maxBodySizeString != null) {
+      maxBodySize = Long.parseLong(maxBodySizeString);
+    }
+    long timeout = 5000;
+    String timeoutString = getConfigParam(P_COALESCE_TIMEOUT);
+    if (timeoutString != null) {
+      timeout = Long.parseLong(timeoutString);
+    }
+    return new RequestCoalescer(keyHeaders.toArray(new String[0]), maxBodySize, timeout);
+  }
+
+  /** The coalescer of identical requests, or null if {@link #P_COALESCE} isn't enabled. */
+  public RequestCoalescer getRequestCoalescer() {
+    return requestCoalescer;
+  }
+
+  /**
+   * Called from {@link #init(jakarta.servlet.ServletConfig)} to create the index of validators, or
+   * return null if there's to be none.
+   * @see #P_VALIDATORINDEX
+   */
+  protected ValidatorIndex createValidatorIndex() {
+    if (!Boolean.parseBoolean(getConfigParam(P_VALIDATORINDEX))) {
+      return null;
+    }
+    int maxEntries = 10000;
+    String maxEntriesString = getConfigParam(P_VALIDATORINDEX_MAXENTRIES);
+    if (maxEntriesString != null) {
+      maxEntries = Integer.parseInt(maxEntriesString);
+    }
+    return new ValidatorIndex(maxEntries);
+  }
+
+  /** The index of validators, or null if {@link #P_VALIDATORINDEX} isn't enabled. */
+  public ValidatorIndex getValidatorIndex() {
+    return validatorIndex;
+  }
+
+  /** Executes the request and copies the response back to the servlet client, blocking meanwhile. */
+  private void executeProxyRequest(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                   HttpRequest proxyRequest) throws ServletException, IOException {
     HttpResponse proxyResponse = null;
     try {
-      // Execute the request
-      proxyResponse = doExecute(servletRequest, servletResponse, proxyRequest);
+      // Execute the request, unless the client's copy is known to be current
+      proxyResponse = validatorIndex != null
+              ? validatorIndex.notModified(proxyRequest, System.currentTimeMillis()) : null;
+      if (proxyResponse == null) {
+        proxyResponse = responseCache != null
+                ? executeWithCache(servletRequest, servletResponse, proxyRequest)
+                : executeUpstream(servletRequest, servletResponse, proxyRequest);
+        if (validatorIndex != null) {
+          updateValidatorIndex(proxyRequest, proxyResponse);
+        }
+      }
 
       // Process the response:
 
@@ -398,11 +1273,189 @@ public class ProxyServlet extends HttpServlet {
       // make sure the entire entity was consumed, so the connection is released
       if (proxyResponse != null)
         EntityUtils.consumeQuietly(proxyResponse.getEntity());
+      if (servletRequest.getAttribute(ATTR_UPSTREAM_PERMIT) != null) {
+        servletRequest.removeAttribute(ATTR_UPSTREAM_PERMIT);
+        upstreamPermits.release();
+      }
       //Note: Don't need to close servlet outputStream:
       // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
     }
   }
 
+  private void updateValidatorIndex(HttpRequest proxyRequest, HttpResponse proxyResponse) {
+    if (CacheSupport.isUnsafeMethod(proxyRequest.getRequestLine().getMethod())) {
+      if (proxyResponse.getStatusLine().getStatusCode() < 400) {
+        validatorIndex.invalidate(proxyRequest.getRequestLine().getUri());
+      }
+    } else {
+      validatorIndex.record(proxyRequest, proxyResponse, System.currentTimeMillis());
+    }
+  }
+
+  /** Executes the request, {@link #getRequestCoalescer() coalesced} with identical ones if enabled. */
+  private HttpResponse executeUpstream(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                       HttpRequest proxyRequest) throws IOException {
+    if (requestCoalescer != null && requestCoalescer.isCoalescable(proxyRequest)) {
+      return requestCoalescer.execute(proxyRequest,
+              () -> executeWithPermit(servletRequest, servletResponse, proxyRequest));
+    }
+    return executeWithPermit(servletRequest, servletResponse, proxyRequest);
+  }
+
+  /**
+   * Calls {@link #doExecute}, holding one of the {@code upstreamPermits} with {@link #P_VIRTUALTHREADS}.
+   * It's released by {@link #executeProxyRequest} once the response is consumed, which is when its
+   * connection goes back to the pool.
+   */
+  private HttpResponse executeWithPermit(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                         HttpRequest proxyRequest) throws IOException {
+    if (upstreamPermits != null && servletRequest.getAttribute(ATTR_UPSTREAM_PERMIT) == null) {
+      try {
+        upstreamPermits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a connection to the target");
+      }
+      servletRequest.setAttribute(ATTR_UPSTREAM_PERMIT, Boolean.TRUE);
+    }
+    return doExecute(servletRequest, servletResponse, proxyRequest);
+  }
+
+  /**
+   * Answers the request from the {@link #getResponseCache() cache} if it can, revalidating a stale
+   * response with the target if needed, or else executes it and stores the response as it's read.
+   */
+  private HttpResponse executeWithCache(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                        HttpRequest proxyRequest) throws IOException {
+    if (!CacheSupport.isCacheableRequest(proxyRequest)) {
+      HttpResponse proxyResponse = executeUpstream(servletRequest, servletResponse, proxyRequest);
+      if (CacheSupport.isUnsafeMethod(proxyRequest.getRequestLine().getMethod())
+              && proxyResponse.getStatusLine().getStatusCode() < 400) {
+        responseCache.invalidate(proxyRequest.getRequestLine().getUri());
+      }
+      return proxyResponse;
+    }
+    Map<String, String> requestCacheControl = CacheSupport.cacheControl(proxyRequest);
+    // a conditional request from the client is passed through; the target decides on a 304
+    ResponseCache.Entry entry = CacheSupport.isConditionalRequest(proxyRequest) ? null
+            : responseCache.lookup(proxyRequest);
+    long now = System.currentTimeMillis();
+    if (entry != null && !CacheSupport.isNoCacheRequest(proxyRequest, requestCacheControl)) {
+      if (entry.satisfies(requestCacheControl, now)) {
+        responseCache.recordHit();
+        return entry.toResponse(now);
+      }
+      if (responseCache.isServableWhileRevalidating(entry, now)) {
+        refreshInBackground(getTargetHost(servletRequest), proxyRequest, entry);
+        responseCache.recordStaleHit();
+        return entry.toResponse(now);
+      }
+    }
+    ResponseCache.Entry stale = entry;
+    if (entry != null && entry.hasValidators()) {
+      entry.addValidators(proxyRequest);
+    } else {
+      entry = null;
+    }
+    long requestTime = System.currentTimeMillis();
+    HttpResponse proxyResponse;
+    try {
+      proxyResponse = executeUpstream(servletRequest, servletResponse, proxyRequest);
+    } catch (IOException e) {
+      if (stale != null && responseCache.isServableOnError(stale, System.currentTimeMillis())) {
+        if (doLog) {
+          log("Serving a stale response for " + proxyRequest.getRequestLine().getUri() + " after: " + e);
+        }
+        responseCache.recordStaleOnError();
+        return stale.toResponse(System.currentTimeMillis());
+      }
+      throw e;
+    }
+    long responseTime = System.currentTimeMillis();
+    int statusCode = proxyResponse.getStatusLine().getStatusCode();
+    if (entry != null && statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+      EntityUtils.consume(proxyResponse.getEntity());
+      entry = responseCache.update(proxyRequest, entry, proxyResponse, requestTime, responseTime);
+      responseCache.recordRevalidation();
+      return entry.toResponse(responseTime);
+    }
+    if (stale != null && isServerError(statusCode) && responseCache.isServableOnError(stale, responseTime)) {
+      EntityUtils.consumeQuietly(proxyResponse.getEntity());
+      responseCache.recordStaleOnError();
+      return stale.toResponse(responseTime);
+    }
+    responseCache.recordMiss();
+    HttpEntity entity = proxyResponse.getEntity();
+    if (entity != null && entity.getContentLength() <= responseCache.getMaxEntrySize()
+            && CacheSupport.isStorable(proxyRequest, requestCacheControl,
+                    proxyResponse, CacheSupport.cacheControl(proxyResponse))) {
+      final HttpResponse response = proxyResponse;
+      proxyResponse.setEntity(CacheSupport.collecting(entity, responseCache.getMaxEntrySize(),
+              body -> responseCache.store(proxyRequest, response, body, requestTime, responseTime)));
+    }
+    return proxyResponse;
+  }
+
+  /** The statuses of a failing target, for which a stale response is better (RFC 5861 4). */
+  private static boolean isServerError(int statusCode) {
+    return statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+  }
+
+  /**
+   * Refreshes a stale cache entry on a background thread, unless that's under way already.  The
+   * servlet request isn't available there, so {@link #doExecute} isn't called.
+   */
+  private void refreshInBackground(HttpHost targetHost, HttpRequest proxyRequest, ResponseCache.Entry entry) {
+    if (!entry.startRefresh()) {
+      return;
+    }
+    HttpRequest refreshRequest = new BasicHttpRequest(proxyRequest.getRequestLine());
+    refreshRequest.setHeaders(proxyRequest.getAllHeaders());
+    if (entry.hasValidators()) {
+      entry.addValidators(refreshRequest);
+    }
+    try {
+      cacheRefresher.execute(() -> {
+        try {
+          refresh(targetHost, refreshRequest, entry);
+        } catch (IOException | RuntimeException e) {
+          if (doLog) {
+            log("Refreshing " + refreshRequest.getRequestLine().getUri() + " failed: " + e);
+          }
+        } finally {
+          entry.endRefresh();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      entry.endRefresh();//destroyed
+    }
+  }
+
+  private void refresh(HttpHost targetHost, HttpRequest refreshRequest, ResponseCache.Entry entry)
+          throws IOException {
+    long requestTime = System.currentTimeMillis();
+    HttpResponse response = execute(targetHost, refreshRequest);
+    long responseTime = System.currentTimeMillis();
+    try {
+      int statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (statusCode == HttpServletResponse.SC_NOT_MODIFIED && entry.hasValidators()) {
+        responseCache.update(refreshRequest, entry, response, requestTime, responseTime);
+      } else if (entity != null && !isServerError(statusCode)
+              && CacheSupport.isStorable(refreshRequest, CacheSupport.cacheControl(refreshRequest),
+                      response, CacheSupport.cacheControl(response))) {
+        CacheSupport.collecting(entity, responseCache.getMaxEntrySize(),
+                body -> responseCache.store(refreshRequest, response, body, requestTime, responseTime))
+                .writeTo(OutputStream.nullOutputStream());
+      }
+    } finally {
+      EntityUtils.consumeQuietly(response.getEntity());
+      if (response instanceof Closeable) {
+        ((Closeable) response).close();
+      }
+    }
+  }
+
   protected void handleRequestException(HttpRequest proxyRequest, HttpResponse proxyResponse, Exception e) throws ServletException, IOException {
     //abort request, according to best practice with HttpClient
     if (proxyRequest instanceof AbortableHttpRequest) {
@@ -426,13 +1479,188 @@ public class ProxyServlet extends HttpServlet {
     throw new RuntimeException(e);
   }
 
+  /**
+   * Runs the blocking proxy exchange on the {@link #createProxyExecutor() proxy executor} instead of
+   * the container thread.  Only as many requests to the target as the connection pool allows run at
+   * a time; the others wait for a permit before executing theirs.  That way virtual threads never
+   * wait for a pooled connection inside HttpClient, which does so holding a monitor and would thus
+   * pin the carrier thread.  Requests answered without the target, e.g. from the cache or by a
+   * coalesced one, don't need a permit.
+   */
+  protected void serviceOnExecutor(final HttpServletRequest servletRequest, final HttpServletResponse servletResponse,
+                                   final HttpRequest proxyRequest) throws ServletException {
+    final AsyncContext asyncContext = servletRequest.startAsync();
+    asyncContext.setTimeout(0);//the client's timeouts apply instead
+    servletRequest.setAttribute(ATTR_ASYNC_RESPONSE, Boolean.TRUE);
+    try {
+      proxyExecutor.execute(() -> {
+        try {
+          executeProxyRequest(servletRequest, servletResponse, proxyRequest);
+        } catch (Exception e) {
+          handleAsyncException(servletRequest, servletResponse, e);
+        } finally {
+          asyncContext.complete();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      asyncContext.complete();
+      throw new ServletException("Proxy executor rejected the request; is the servlet being destroyed?", e);
+    }
+  }
+
+  /**
+   * Executes {@code proxyRequest} on the {@link #getJdkProxyClient() JDK client} and writes the
+   * response from its callbacks; the calling container thread returns immediately.  The response
+   * headers go through {@link #copyResponseHeaders(HttpResponse, HttpServletRequest, HttpServletResponse)}
+   * as usual, but the body is streamed directly, so {@link #copyResponseEntity} isn't called.
+   */
+  protected void serviceAsync(final HttpServletRequest servletRequest, final HttpServletResponse servletResponse,
+                              HttpRequest proxyRequest) throws IOException {
+    if (doLog) {
+      log("proxy async " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
+              proxyRequest.getRequestLine().getUri());
+    }
+    final AsyncContext asyncContext = servletRequest.startAsync();
+    asyncContext.setTimeout(0);//the client's timeouts apply instead
+    servletRequest.setAttribute(ATTR_ASYNC_RESPONSE, Boolean.TRUE);
+    Duration timeout = readTimeout > 0 ? Duration.ofMillis(readTimeout) : null;
+    java.net.http.HttpRequest request;
+    final WriteListenerBodySubscriber nonBlockingBodySubscriber;
+    if (doNonBlockingIO) {
+      // Listeners are registered here, on the container thread
+      request = JdkClientSupport.toJdkRequest(proxyRequest, newNonBlockingBodyPublisher(servletRequest, proxyRequest),
+              timeout);
+      nonBlockingBodySubscriber = new WriteListenerBodySubscriber(servletResponse.getOutputStream());
+    } else {
+      request = JdkClientSupport.toJdkRequest(proxyRequest, timeout);
+      nonBlockingBodySubscriber = null;
+    }
+
+    final CompletableFuture<java.net.http.HttpResponse<Void>> future = jdkProxyClient.sendAsync(request,
+            responseInfo -> {
+              HttpResponse proxyResponse = JdkClientSupport.toProxyResponse(responseInfo);
+              int statusCode = responseInfo.statusCode();
+              servletResponse.setStatus(statusCode);
+              copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+              if (statusCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                // 304 needs special handling; see #service
+                servletResponse.setIntHeader(HttpHeaders.CONTENT_LENGTH, 0);
+                return java.net.http.HttpResponse.BodySubscribers.discarding();
+              }
+              if (nonBlockingBodySubscriber != null) {
+                return nonBlockingBodySubscriber;
+              }
+              try {
+                return new ServletResponseBodySubscriber(servletResponse.getOutputStream());
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        future.cancel(true);
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        future.cancel(true);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+
+    future.whenComplete((response, throwable) -> {
+      try {
+        if (throwable != null) {
+          handleAsyncException(servletRequest, servletResponse, throwable);
+        }
+      } finally {
+        asyncContext.complete();
+      }
+    });
+  }
+
+  /**
+   * Publishes the request body with a {@code ReadListener} when it's the servlet input stream as set
+   * up by {@link #newProxyRequestWithEntity(String, String, HttpServletRequest)}.  An entity that a
+   * subclass substituted is streamed from its content as usual.
+   */
+  private java.net.http.HttpRequest.BodyPublisher newNonBlockingBodyPublisher(HttpServletRequest servletRequest,
+                                                                              HttpRequest proxyRequest)
+          throws IOException {
+    if (!(proxyRequest instanceof HttpEntityEnclosingRequest)) {
+      return java.net.http.HttpRequest.BodyPublishers.noBody();
+    }
+    HttpEntity entity = ((HttpEntityEnclosingRequest) proxyRequest).getEntity();
+    if (entity == null) {
+      return java.net.http.HttpRequest.BodyPublishers.noBody();
+    }
+    ServletInputStream servletInputStream = servletRequest.getInputStream();
+    if (!entity.isStreaming() || entity.getContent() != servletInputStream) {
+      return JdkClientSupport.newBodyPublisher(entity);
+    }
+    ReadListenerBodyPublisher publisher = new ReadListenerBodyPublisher(servletInputStream);
+    long contentLength = entity.getContentLength();
+    return contentLength >= 0 ?
+            java.net.http.HttpRequest.BodyPublishers.fromPublisher(publisher, contentLength) :
+            java.net.http.HttpRequest.BodyPublishers.fromPublisher(publisher);
+  }
+
+  /**
+   * Called when an asynchronously proxied request fails, be it in {@link #P_ASYNC} or
+   * {@link #P_VIRTUALTHREADS} mode.  There is no container thread to throw to,
+   * so by default the error is logged and, if still possible, answered with 502 Bad Gateway.
+   */
+  protected void handleAsyncException(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                      Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+    log("While proxying " + servletRequest.getRequestURI() + " asynchronously: " + e, e);
+    if (!servletResponse.isCommitted()) {
+      try {
+        servletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+      } catch (IOException | IllegalStateException ignored) {
+        // the client is gone
+      }
+    }
+  }
+
   protected HttpResponse doExecute(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
                                    HttpRequest proxyRequest) throws IOException {
     if (doLog) {
       log("proxy " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI() + " -- " +
               proxyRequest.getRequestLine().getUri());
     }
-    return proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+    return execute(getTargetHost(servletRequest), proxyRequest);
+  }
+
+  private HttpResponse execute(HttpHost targetHost, HttpRequest proxyRequest) throws IOException {
+    if (jdkProxyClient != null) {
+      return executeOnJdkClient(proxyRequest);
+    }
+    return proxyClient.execute(targetHost, proxyRequest);
+  }
+
+  /** Executes a request on the {@link #getJdkProxyClient() JDK client}, streaming the response body. */
+  private HttpResponse executeOnJdkClient(HttpRequest proxyRequest) throws IOException {
+    java.net.http.HttpRequest request = JdkClientSupport.toJdkRequest(proxyRequest,
+            readTimeout > 0 ? Duration.ofMillis(readTimeout) : null);
+    try {
+      return JdkClientSupport.toProxyResponse(
+              jdkProxyClient.send(request, java.net.http.HttpResponse.BodyHandlers.ofInputStream()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while proxying " + request.uri());
+    }
   }
 
   protected HttpRequest newProxyRequestWithEntity(String method, String proxyRequestUri,
@@ -466,8 +1694,9 @@ public class ProxyServlet extends HttpServlet {
 
   /** These are the "hop-by-hop" headers that should not be copied.
    * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html
-   * I use an HttpClient HeaderGroup class instead of Set&lt;String&gt; because this
-   * approach does case insensitive lookup faster.
+   * The copy methods classify the standard ones with a precomputed table, and only look here for
+   * other names, e.g. ones a subclass added.  Headers named in a message's Connection header are
+   * hop-by-hop too, and are dropped by {@link #copyRequestHeader} and {@link #copyResponseHeader}.
    */
   protected static final HeaderGroup hopByHopHeaders;
   static {
@@ -480,6 +1709,14 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /** The kind of a header, including the names added to {@link #hopByHopHeaders}. */
+  private static HeaderKind headerKind(String headerName) {
+    HeaderKind kind = HeaderKind.of(headerName);
+    if (kind == HeaderKind.OTHER && hopByHopHeaders.containsHeader(headerName))
+      return HeaderKind.HOP_BY_HOP;
+    return kind;
+  }
+
   /**
    * Copy request headers from the servlet client to the proxy request.
    * This is easily overridden to add your own.
@@ -494,20 +1731,35 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /**
+   * The headers the client named in its Connection headers, which mustn't be forwarded.  They're
+   * parsed once per request.
+   */
+  private static ConnectionOptions getRequestConnectionOptions(HttpServletRequest servletRequest) {
+    ConnectionOptions options =
+            (ConnectionOptions) servletRequest.getAttribute(ATTR_REQUEST_CONNECTION_OPTIONS);
+    if (options == null) {
+      options = ConnectionOptions.parse(servletRequest.getHeaders(HttpHeaders.CONNECTION));
+      servletRequest.setAttribute(ATTR_REQUEST_CONNECTION_OPTIONS, options);
+    }
+    return options;
+  }
+
   /**
    * Copy a request header from the servlet client to the proxy request.
    * This is easily overridden to filter out certain headers if desired.
    */
   protected void copyRequestHeader(HttpServletRequest servletRequest, HttpRequest proxyRequest,
                                    String headerName) {
+    HeaderKind kind = headerKind(headerName);
     //Instead the content-length is effectively set via InputStreamEntity
-    if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
+    if (kind == HeaderKind.HOP_BY_HOP || kind == HeaderKind.CONTENT_LENGTH)
       return;
-    if (hopByHopHeaders.containsHeader(headerName))
+    if (getRequestConnectionOptions(servletRequest).contains(headerName))
       return;
     // If compression is handled in the servlet, apache http client needs to
     // control the Accept-Encoding header, not the client
-    if (doHandleCompression && headerName.equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING))
+    if (kind == HeaderKind.ACCEPT_ENCODING && doHandleCompression)
       return;
 
     @SuppressWarnings("unchecked")
@@ -517,12 +1769,12 @@ public class ProxyServlet extends HttpServlet {
       // In case the proxy host is running multiple virtual servers,
       // rewrite the Host header to ensure that we get content from
       // the correct virtual server
-      if (!doPreserveHost && headerName.equalsIgnoreCase(HttpHeaders.HOST)) {
+      if (!doPreserveHost && kind == HeaderKind.HOST) {
         HttpHost host = getTargetHost(servletRequest);
         headerValue = host.getHostName();
         if (host.getPort() != -1)
           headerValue += ":"+host.getPort();
-      } else if (!doPreserveCookies && headerName.equalsIgnoreCase(org.apache.http.cookie.SM.COOKIE)) {
+      } else if (!doPreserveCookies && kind == HeaderKind.COOKIE) {
         headerValue = getRealCookie(headerValue);
       }
       proxyRequest.addHeader(headerName, headerValue);
@@ -549,6 +1801,22 @@ public class ProxyServlet extends HttpServlet {
   /** Copy proxied response headers back to the servlet client. */
   protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
                                      HttpServletResponse servletResponse) {
+    // Parsed once for this response; copyResponseHeader checks them
+    servletRequest.setAttribute(ATTR_RESPONSE_CONNECTION_OPTIONS,
+            ConnectionOptions.parse(proxyResponse.getHeaders(HttpHeaders.CONNECTION)));
+    if (!responseBodyTransformers.isEmpty() && proxyResponse.getEntity() != null
+            && servletRequest.getAttribute(ATTR_ASYNC_RESPONSE) == null) {
+      List<ResponseBodyTransformer> transformers = null;
+      for (ResponseBodyTransformer transformer : responseBodyTransformers) {
+        if (transformer.appliesTo(servletRequest, proxyResponse)) {
+          if (transformers == null)
+            transformers = new ArrayList<>(responseBodyTransformers.size());
+          transformers.add(transformer);
+        }
+      }
+      if (transformers != null)
+        servletRequest.setAttribute(ATTR_RESPONSE_BODY_TRANSFORMERS, transformers);
+    }
     for (Header header : proxyResponse.getAllHeaders()) {
       copyResponseHeader(servletRequest, servletResponse, header);
     }
@@ -560,29 +1828,77 @@ public class ProxyServlet extends HttpServlet {
   protected void copyResponseHeader(HttpServletRequest servletRequest,
                                   HttpServletResponse servletResponse, Header header) {
     String headerName = header.getName();
-    if (hopByHopHeaders.containsHeader(headerName))
+    HeaderKind kind = headerKind(headerName);
+    if (kind == HeaderKind.HOP_BY_HOP)
       return;
-    String headerValue = header.getValue();
-    if (headerName.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE) ||
-            headerName.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE2)) {
-      copyProxyCookie(servletRequest, servletResponse, headerValue);
-    } else if (headerName.equalsIgnoreCase(HttpHeaders.LOCATION)) {
-      // LOCATION Header may have to be rewritten.
-      servletResponse.addHeader(headerName, rewriteUrlFromResponse(servletRequest, headerValue));
-    } else {
-      servletResponse.addHeader(headerName, headerValue);
+    ConnectionOptions connectionOptions =
+            (ConnectionOptions) servletRequest.getAttribute(ATTR_RESPONSE_CONNECTION_OPTIONS);
+    if (connectionOptions != null && connectionOptions.contains(headerName))
+      return;
+    switch (kind) {
+      case SET_COOKIE:
+        copyProxyCookie(servletRequest, servletResponse, header.getValue());
+        break;
+      case SET_COOKIE2:
+        if (copyProxyCookieOverridden)
+          copyProxyCookie(servletRequest, servletResponse, header.getValue());
+        else
+          addProxyCookies(servletRequest, servletResponse, header.getValue());
+        break;
+      case CONTENT_LENGTH:
+        // A transformed body is sent chunked, unless its length stays the same
+        if (isBodyLengthPreserved(servletRequest))
+          servletResponse.addHeader(headerName, header.getValue());
+        break;
+      case LOCATION:
+        // LOCATION Header may have to be rewritten.
+        servletResponse.addHeader(headerName, rewriteUrlFromResponse(servletRequest, header.getValue()));
+        break;
+      case CONTENT_LOCATION:
+        servletResponse.addHeader(headerName, doRewriteUrlHeaders
+                ? rewriteUrlFromResponse(servletRequest, header.getValue()) : header.getValue());
+        break;
+      case REFRESH:
+        servletResponse.addHeader(headerName, doRewriteUrlHeaders
+                ? rewriteRefreshUrl(servletRequest, header.getValue()) : header.getValue());
+        break;
+      case LINK:
+        servletResponse.addHeader(headerName, doRewriteUrlHeaders
+                ? rewriteLinkUrls(servletRequest, header.getValue()) : header.getValue());
+        break;
+      default:
+        servletResponse.addHeader(headerName, header.getValue());
+        break;
     }
   }
 
   /**
    * Copy cookie from the proxy to the servlet client.
    * Replaces cookie path to local path and renames cookie to avoid collisions.
+   * The header is rewritten as text in a single pass, unless {@link #createProxyCookie} or
+   * {@link #getProxyCookieName} is overridden.
    */
   protected void copyProxyCookie(HttpServletRequest servletRequest,
                                  HttpServletResponse servletResponse, String headerValue) {
+    if (!servletCookiesOverridden) {
+      String setCookie = rewriteSetCookie(servletRequest, headerValue);
+      if (setCookie != null) {
+        servletResponse.addHeader(org.apache.http.cookie.SM.SET_COOKIE, setCookie);
+      }
+      return;
+    }
+    addProxyCookies(servletRequest, servletResponse, headerValue);
+  }
+
+  /**
+   * Parses the cookies of a Set-Cookie or Set-Cookie2 header, of which there may be several, and
+   * adds them with {@link #createProxyCookie}.
+   */
+  private void addProxyCookies(HttpServletRequest servletRequest,
+                               HttpServletResponse servletResponse, String headerValue) {
+    String sameSite = parseSameSite(headerValue);
     for (HttpCookie cookie : HttpCookie.parse(headerValue)) {
       Cookie servletCookie = createProxyCookie(servletRequest, cookie);
-      String sameSite = parseSameSite(headerValue);
       if (sameSite != null) {
         try {
           servletCookie.setAttribute("SameSite", sameSite); // Servlet 6.0+
@@ -604,6 +1920,72 @@ public class ProxyServlet extends HttpServlet {
     return null;
   }
 
+  /**
+   * Rewrites a Set-Cookie header from the target (one cookie, per RFC 6265) the way
+   * {@link #createProxyCookie} would: the name gets the prefix, the path becomes the servlet's,
+   * Domain is dropped and Secure is only kept on a secure request.  Expires, Max-Age, HttpOnly,
+   * SameSite and unknown attributes are kept verbatim.  Returns null if there's no cookie name.
+   */
+  private String rewriteSetCookie(HttpServletRequest servletRequest, String headerValue) {
+    int length = headerValue.length();
+    int pairEnd = headerValue.indexOf(';');
+    if (pairEnd < 0)
+      pairEnd = length;
+    int equals = headerValue.indexOf('=');
+    if (equals < 0 || equals > pairEnd)
+      return null;
+    int nameStart = trimStart(headerValue, 0, equals);
+    int nameEnd = trimEnd(headerValue, nameStart, equals);
+    if (nameStart == nameEnd)
+      return null;
+    int valueStart = trimStart(headerValue, equals + 1, pairEnd);
+    int valueEnd = trimEnd(headerValue, valueStart, pairEnd);
+
+    StringBuilder setCookie = new StringBuilder(length + 64);
+    if (!doPreserveCookies) {
+      setCookie.append(cookieNamePrefixOverridden || cookieNamePrefix == null
+              ? getCookieNamePrefix(headerValue.substring(nameStart, nameEnd)) : cookieNamePrefix);
+    }
+    setCookie.append(headerValue, nameStart, nameEnd).append('=').append(headerValue, valueStart, valueEnd);
+    boolean hasPath = false;
+    for (int start = pairEnd + 1; start < length; ) {
+      int end = headerValue.indexOf(';', start);
+      if (end < 0)
+        end = length;
+      int attributeStart = trimStart(headerValue, start, end);
+      int attributeEnd = trimEnd(headerValue, attributeStart, end);
+      int attributeEquals = headerValue.indexOf('=', attributeStart);
+      int attributeNameEnd = attributeEquals < 0 || attributeEquals > attributeEnd ? attributeEnd
+              : trimEnd(headerValue, attributeStart, attributeEquals);
+      start = end + 1;
+      if (attributeStart == attributeEnd) {
+        continue;
+      }
+      if (isAttribute(headerValue, attributeStart, attributeNameEnd, "Path")) {
+        if (hasPath || !doPreserveCookiePath) {
+          continue;// the servlet's path is appended below
+        }
+        hasPath = true;
+      } else if (isAttribute(headerValue, attributeStart, attributeNameEnd, "Domain")
+              || isAttribute(headerValue, attributeStart, attributeNameEnd, "Comment")
+              || isAttribute(headerValue, attributeStart, attributeNameEnd, "Version")) {
+        continue;
+      } else if (isAttribute(headerValue, attributeStart, attributeNameEnd, "Secure")
+              && !servletRequest.isSecure()) {
+        continue;
+      }
+      setCookie.append("; ").append(headerValue, attributeStart, attributeEnd);
+    }
+    if (!doPreserveCookiePath) {
+      setCookie.append("; Path=").append(buildProxyCookiePath(servletRequest));
+    }
+    return setCookie.toString();
+  }
+
+  private static boolean isAttribute(String s, int start, int end, String name) {
+    return end - start == name.length() && s.regionMatches(true, start, name, 0, name.length());
+  }
+
   /**
    * Creates a proxy cookie from the original cookie.
    *
@@ -659,27 +2041,73 @@ public class ProxyServlet extends HttpServlet {
    * This also blocks any local cookies from being sent to the proxy.
    */
   protected String getRealCookie(String cookieValue) {
-    StringBuilder escapedCookie = new StringBuilder();
-    String cookies[] = cookieValue.split("[;,]");
-    for (String cookie : cookies) {
-      String cookieSplit[] = cookie.split("=");
-      if (cookieSplit.length == 2) {
-        String cookieName = cookieSplit[0].trim();
-        if (cookieName.startsWith(getCookieNamePrefix(cookieName))) {
-          cookieName = cookieName.substring(getCookieNamePrefix(cookieName).length());
-          if (escapedCookie.length() > 0) {
+    // A single pass copying the name and value spans of the proxy's cookies, without splitting
+    StringBuilder escapedCookie = null;
+    int length = cookieValue.length();
+    int start = 0;
+    while (start < length) {
+      int end = start;
+      int equals = -1;
+      for (; end < length; end++) {
+        char c = cookieValue.charAt(end);
+        if (c == ';' || c == ',')
+          break;
+        if (c == '=' && equals < 0)
+          equals = end;
+      }
+      if (equals >= 0) {
+        int nameStart = trimStart(cookieValue, start, equals);
+        int nameEnd = trimEnd(cookieValue, nameStart, equals);
+        String prefix = cookieNamePrefixOverridden || cookieNamePrefix == null
+                ? getCookieNamePrefix(cookieValue.substring(nameStart, nameEnd)) : cookieNamePrefix;
+        if (nameEnd - nameStart >= prefix.length()
+                && cookieValue.startsWith(prefix, nameStart)) {
+          int valueStart = trimStart(cookieValue, equals + 1, end);
+          int valueEnd = trimEnd(cookieValue, valueStart, end);
+          if (escapedCookie == null) {
+            escapedCookie = new StringBuilder(length);
+          } else {
             escapedCookie.append("; ");
           }
-          escapedCookie.append(cookieName).append("=").append(cookieSplit[1].trim());
+          escapedCookie.append(cookieValue, nameStart + prefix.length(), nameEnd)
+                  .append('=').append(cookieValue, valueStart, valueEnd);
         }
       }
+      start = end + 1;
     }
-    return escapedCookie.toString();
+    return escapedCookie == null ? "" : escapedCookie.toString();
+  }
+
+  /** The index of the first non-whitespace character in [start, end), or end. */
+  private static int trimStart(String s, int start, int end) {
+    while (start < end && s.charAt(start) <= ' ')
+      start++;
+    return start;
+  }
+
+  /** The index after the last non-whitespace character in [start, end), or start. */
+  private static int trimEnd(String s, int start, int end) {
+    while (end > start && s.charAt(end - 1) <= ' ')
+      end--;
+    return end;
   }
 
-  /** The string prefixing rewritten cookies. */
+  /** The string prefixing rewritten cookies; "!Proxy!" and the servlet name. */
   protected String getCookieNamePrefix(String name) {
-    return "!Proxy!" + getServletConfig().getServletName();
+    return cookieNamePrefix != null ? cookieNamePrefix : "!Proxy!" + getServletConfig().getServletName();
+  }
+
+  /** Whether a subclass overrides a method of this class, so its result can't be cached or bypassed. */
+  private boolean overrides(String name, Class<?>... parameterTypes) {
+    for (Class<?> type = getClass(); type != ProxyServlet.class; type = type.getSuperclass()) {
+      try {
+        type.getDeclaredMethod(name, parameterTypes);
+        return true;
+      } catch (NoSuchMethodException e) {
+        // keep looking
+      }
+    }
+    return false;
   }
 
   /** Copy response body data (the entity) from the proxy to the servlet client. */
@@ -688,37 +2116,153 @@ public class ProxyServlet extends HttpServlet {
           throws IOException {
     HttpEntity entity = proxyResponse.getEntity();
     if (entity != null) {
-      if (entity.isChunked()) {
-        // Flush intermediate results before blocking on input -- needed for SSE
+      ByteBuffer buffer = bufferPool.acquire(entity.getContentLength());
+      try {
         InputStream is = entity.getContent();
-        OutputStream os = servletResponse.getOutputStream();
-        byte[] buffer = new byte[10 * 1024];
-        int read;
-        while ((read = is.read(buffer)) != -1) {
-          os.write(buffer, 0, read);
-          /*-
-           * Issue in Apache http client/JDK: if the stream from client is
-           * compressed, apache http client will delegate to GzipInputStream.
-           * The #available implementation of InflaterInputStream (parent of
-           * GzipInputStream) return 1 until EOF is reached. This is not
-           * consistent with InputStream#available, which defines:
-           *
-           *   A single read or skip of this many bytes will not block,
-           *   but may read or skip fewer bytes.
-           *
-           *  To work around this, a flush is issued always if compression
-            *  is handled by apache http client
-           */
-          if (doHandleCompression || is.available() == 0 /* next is.read will block */) {
-            os.flush();
+        ServletOutputStream os = servletResponse.getOutputStream();
+        WritableByteChannel out = new OutputStreamChannel(os);
+        // Flush intermediate results of streams -- needed for SSE
+        FlushPolicy policy = entity.isChunked() ? flushPolicy : FlushPolicy.never();
+        try (FlushPolicy.Session session = policy.open(out, os, is)) {
+          @SuppressWarnings("unchecked")
+          List<ResponseBodyTransformer> transformers =
+                  (List<ResponseBodyTransformer>) servletRequest.getAttribute(ATTR_RESPONSE_BODY_TRANSFORMERS);
+          if (transformers == null) {
+            copy(is, session::write, buffer);
+          } else {
+            // Opened from the last one, which writes to the client
+            ResponseBodyTransformer.Stage[] stages = new ResponseBodyTransformer.Stage[transformers.size()];
+            ResponseBodyTransformer.Sink next = session::write;
+            for (int i = stages.length - 1; i >= 0; i--) {
+              stages[i] = transformers.get(i).open(servletRequest, proxyResponse, next);
+              next = stages[i];
+            }
+            copy(is, stages[0], buffer);
+            // In order, so what a stage held back goes through the next ones before they finish
+            for (ResponseBodyTransformer.Stage stage : stages) {
+              stage.finish();
+            }
           }
         }
         // Entity closing/cleanup is done in the caller (#service)
-      } else {
-        OutputStream servletOutputStream = servletResponse.getOutputStream();
-        entity.writeTo(servletOutputStream);
+      } finally {
+        bufferPool.release(buffer);
+      }
+    }
+  }
+
+  /** Adapts an output stream, taking heap buffers without copying them. */
+  private static class OutputStreamChannel implements WritableByteChannel {
+    private final OutputStream out;
+
+    OutputStreamChannel(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int remaining = src.remaining();
+      if (src.hasArray()) {
+        out.write(src.array(), src.arrayOffset() + src.position(), remaining);
+        src.position(src.limit());
+      } else {//e.g. from a ResponseBodyTransformer
+        byte[] bytes = new byte[remaining];
+        src.get(bytes);
+        out.write(bytes);
+      }
+      return remaining;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Whether {@link #P_REWRITEBODY} applies to a response: it has a body in one of
+   * {@link #rewriteBodyContentTypes}, in an ASCII compatible charset, without a Content-Encoding.
+   */
+  protected boolean isBodyRewritable(HttpResponse proxyResponse) {
+    if (proxyResponse.getEntity() == null)
+      return false;
+    Header contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+    if (contentEncoding != null && !contentEncoding.getValue().trim().equalsIgnoreCase("identity"))
+      return false;
+    String mediaType = ResponseBodyTransformer.mediaType(proxyResponse);
+    if (mediaType == null)
+      return false;
+    for (String type : rewriteBodyContentTypes) {
+      if (type.equalsIgnoreCase(mediaType)) {
+        String contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE).getValue();
+        int semicolon = contentType.indexOf(';');
+        return semicolon < 0 || isAsciiCompatible(contentType.substring(semicolon + 1));
+      }
+    }
+    return false;
+  }
+
+  /** The transformer of {@link #P_REWRITEBODY}. */
+  private class BodyUrlRewriting implements ResponseBodyTransformer {
+    @Override
+    public boolean appliesTo(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+      return isBodyRewritable(proxyResponse);
+    }
+
+    @Override
+    public Stage open(HttpServletRequest servletRequest, HttpResponse proxyResponse, Sink next) {
+      return getBodyUrlRewriter(getTargetUri(servletRequest)).open(getServletUrl(servletRequest), next);
+    }
+  }
+
+  /** Whether no {@link ResponseBodyTransformer} applying to the response changes its length. */
+  private static boolean isBodyLengthPreserved(HttpServletRequest servletRequest) {
+    @SuppressWarnings("unchecked")
+    List<ResponseBodyTransformer> transformers =
+            (List<ResponseBodyTransformer>) servletRequest.getAttribute(ATTR_RESPONSE_BODY_TRANSFORMERS);
+    if (transformers != null) {
+      for (ResponseBodyTransformer transformer : transformers) {
+        if (!transformer.preservesLength())
+          return false;
       }
     }
+    return true;
+  }
+
+  /** Whether the charset of Content-Type parameters, if any, isn't UTF-16 or UTF-32. */
+  private static boolean isAsciiCompatible(String parameters) {
+    String lowerCase = parameters.toLowerCase(Locale.ROOT);
+    int charset = lowerCase.indexOf("charset=");
+    if (charset < 0)
+      return true;
+    int start = charset + "charset=".length();
+    if (lowerCase.startsWith("\"", start))
+      start++;
+    return !lowerCase.startsWith("utf-16", start) && !lowerCase.startsWith("utf-32", start);
+  }
+
+  private BodyUrlRewriter getBodyUrlRewriter(String targetUri) {
+    synchronized (bodyUrlRewriters) {
+      return bodyUrlRewriters.computeIfAbsent(targetUri, BodyUrlRewriter::new);
+    }
+  }
+
+  private void copy(InputStream is, ResponseBodyTransformer.Sink out, ByteBuffer buffer) throws IOException {
+    while (true) {
+      int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      if (read == -1) {
+        break;
+      }
+      buffer.position(buffer.position() + read);
+      buffer.flip();
+      out.write(buffer);
+      buffer.clear();
+    }
   }
 
   /**
@@ -726,13 +2270,13 @@ public class ProxyServlet extends HttpServlet {
    * It's used to make the new request.
    */
   protected String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
-    StringBuilder uri = new StringBuilder(500);
-    uri.append(getTargetUri(servletRequest));
+    String targetUri = getTargetUri(servletRequest);
     // Handle the path given to the servlet
     String pathInfo = rewritePathInfoFromRequest(servletRequest);
+    CharSequence path = "";
     if (pathInfo != null) {//ex: /my/path.html
       // getPathInfo() returns decoded string, so we need encodeUriQuery to encode "%" characters
-      uri.append(encodeUriQuery(pathInfo, true));
+      path = encodeUriQuery(pathInfo, true);
     }
     // Handle the query string & fragment
     String queryString = servletRequest.getQueryString();//ex:(following '?'): name=value&foo=bar#fragment
@@ -747,16 +2291,30 @@ public class ProxyServlet extends HttpServlet {
     }
 
     queryString = rewriteQueryStringFromRequest(servletRequest, queryString);
+    CharSequence query = null;
     if (queryString != null && queryString.length() > 0) {
-      uri.append('?');
       // queryString is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-      uri.append(encodeUriQuery(queryString, false));
+      query = encodeUriQuery(queryString, false);
     }
-
+    CharSequence encodedFragment = null;
     if (doSendUrlFragment && fragment != null) {
-      uri.append('#');
       // fragment is not decoded, so we need encodeUriQuery not to encode "%" characters, to avoid double-encoding
-      uri.append(encodeUriQuery(fragment, false));
+      encodedFragment = encodeUriQuery(fragment, false);
+    }
+
+    // The common case, with nothing escaped: copy the chars once
+    if (query == null && encodedFragment == null && path instanceof String) {
+      return targetUri.concat((String) path);
+    }
+    StringBuilder uri = new StringBuilder(targetUri.length() + path.length()
+            + (query == null ? 0 : 1 + query.length())
+            + (encodedFragment == null ? 0 : 1 + encodedFragment.length()));
+    uri.append(targetUri).append(path);
+    if (query != null) {
+      uri.append('?').append(query);
+    }
+    if (encodedFragment != null) {
+      uri.append('#').append(encodedFragment);
     }
     return uri.toString();
   }
@@ -790,27 +2348,108 @@ public class ProxyServlet extends HttpServlet {
        * using this servlet's absolute path and the path from the returned URL
        * after the base target URL.
        */
-      StringBuffer curUrl = servletRequest.getRequestURL();//no query
-      int pos;
-      // Skip the protocol part
-      if ((pos = curUrl.indexOf("://"))>=0) {
-        // Skip the authority part
-        // + 3 to skip the separator between protocol and authority
-        if ((pos = curUrl.indexOf("/", pos + 3)) >=0) {
-          // Trim everything after the authority part.
-          curUrl.setLength(pos);
-        }
-      }
-      // Context path starts with a / if it is not blank
-      curUrl.append(servletRequest.getContextPath());
-      // Servlet path starts with a / if it is not blank
-      curUrl.append(servletRequest.getServletPath());
-      curUrl.append(theUrl, targetUri.length(), theUrl.length());
-      return curUrl.toString();
+      String servletUrl = getServletUrl(servletRequest);
+      return new StringBuilder(servletUrl.length() + theUrl.length() - targetUri.length())
+              .append(servletUrl).append(theUrl, targetUri.length(), theUrl.length()).toString();
     }
     return theUrl;
   }
 
+  /**
+   * The absolute URL of this servlet for a request: its scheme, host, port, context path and
+   * servlet path, as {@link HttpServletRequest#getRequestURL()} would start.  These are cached in
+   * a small direct mapped table, which is looked up without allocating.
+   */
+  private String getServletUrl(HttpServletRequest servletRequest) {
+    String scheme = servletRequest.getScheme();
+    String serverName = servletRequest.getServerName();
+    int port = servletRequest.getServerPort();
+    String contextPath = servletRequest.getContextPath();
+    String servletPath = servletRequest.getServletPath();
+    int hash = (((scheme.hashCode() * 31 + serverName.hashCode()) * 31 + port) * 31
+            + contextPath.hashCode()) * 31 + servletPath.hashCode();
+    int slot = (hash ^ (hash >>> 16)) & (servletUrls.length() - 1);
+    ServletUrl servletUrl = servletUrls.get(slot);
+    if (servletUrl == null || !servletUrl.matches(scheme, serverName, port, contextPath, servletPath)) {
+      servletUrl = new ServletUrl(scheme, serverName, port, contextPath, servletPath);
+      servletUrls.set(slot, servletUrl);
+    }
+    return servletUrl.url;
+  }
+
+  private static final class ServletUrl {
+    final String scheme;
+    final String serverName;
+    final int port;
+    final String contextPath;
+    final String servletPath;
+    final String url;
+
+    ServletUrl(String scheme, String serverName, int port, String contextPath, String servletPath) {
+      this.scheme = scheme;
+      this.serverName = serverName;
+      this.port = port;
+      this.contextPath = contextPath;
+      this.servletPath = servletPath;
+      StringBuilder url = new StringBuilder(scheme).append("://").append(serverName);
+      if (port > 0 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+        url.append(':').append(port);
+      }
+      // Context path and servlet path start with a / if they are not blank
+      this.url = url.append(contextPath).append(servletPath).toString();
+    }
+
+    boolean matches(String scheme, String serverName, int port, String contextPath, String servletPath) {
+      return this.port == port && this.scheme.equals(scheme) && this.serverName.equals(serverName)
+              && this.contextPath.equals(contextPath) && this.servletPath.equals(servletPath);
+    }
+  }
+
+  /** Rewrites the URL of a Refresh header, e.g. {@code 5; url=http://target/next}. */
+  private String rewriteRefreshUrl(HttpServletRequest servletRequest, String refresh) {
+    int semicolon = refresh.indexOf(';');
+    if (semicolon < 0)
+      return refresh;
+    int start = trimStart(refresh, semicolon + 1, refresh.length());
+    if (!refresh.regionMatches(true, start, "url", 0, 3))
+      return refresh;
+    start = trimStart(refresh, start + 3, refresh.length());
+    if (start == refresh.length() || refresh.charAt(start) != '=')
+      return refresh;
+    start = trimStart(refresh, start + 1, refresh.length());
+    int end = trimEnd(refresh, start, refresh.length());
+    if (end - start >= 2 && (refresh.charAt(start) == '\'' || refresh.charAt(start) == '"')
+            && refresh.charAt(end - 1) == refresh.charAt(start)) {
+      start++;
+      end--;
+    }
+    return rewriteUrlSpan(servletRequest, refresh, start, end);
+  }
+
+  /** Rewrites the URI references of a Link header, e.g. {@code <http://target/p2>; rel="next"}. */
+  private String rewriteLinkUrls(HttpServletRequest servletRequest, String link) {
+    int open = link.indexOf('<');
+    while (open >= 0) {
+      int close = link.indexOf('>', open + 1);
+      if (close < 0)
+        break;
+      link = rewriteUrlSpan(servletRequest, link, open + 1, close);
+      close = link.indexOf('>', open + 1);
+      open = link.indexOf('<', close + 1);
+    }
+    return link;
+  }
+
+  /** Replaces the URL in [start, end) of a header value with {@link #rewriteUrlFromResponse}'s. */
+  private String rewriteUrlSpan(HttpServletRequest servletRequest, String value, int start, int end) {
+    String url = value.substring(start, end);
+    String rewritten = rewriteUrlFromResponse(servletRequest, url);
+    if (rewritten.equals(url))
+      return value;
+    return new StringBuilder(value.length() - url.length() + rewritten.length())
+            .append(value, 0, start).append(rewritten).append(value, end, value.length()).toString();
+  }
+
   /** The target URI as configured. Not null. */
   public String getTargetUri() { return targetUri; }
 
@@ -820,40 +2459,54 @@ public class ProxyServlet extends HttpServlet {
    * <p>Unfortunately, an incoming URI sometimes has characters disallowed by the spec.  HttpClient
    * insists that the outgoing proxied request has a valid URI because it uses Java's {@link URI}.
    * To be more forgiving, we must escape the problematic characters.  See the URI class for the
-   * spec.
+   * spec.  Those that aren't ASCII (spaces and controls) are escaped as UTF-8.
    *
    * @param in example: name=value&amp;foo=bar#fragment
    * @param encodePercent determine whether percent characters need to be encoded
    */
   protected CharSequence encodeUriQuery(CharSequence in, boolean encodePercent) {
     //Note that I can't simply use URI.java to encode because it will escape pre-existing escaped things.
-    StringBuilder outBuf = null;
-    Formatter formatter = null;
-    for(int i = 0; i < in.length(); i++) {
+    int length = in.length();
+    int i = 0;
+    while (i < length && !needsEscape(in.charAt(i), encodePercent)) {
+      i++;
+    }
+    if (i == length) {
+      return in;
+    }
+    StringBuilder outBuf = new StringBuilder(length + 5*3);
+    outBuf.append(in, 0, i);
+    for (; i < length; i++) {
       char c = in.charAt(i);
-      boolean escape = true;
-      if (c < 128) {
-        if (asciiQueryChars.get(c) && !(encodePercent && c == '%')) {
-          escape = false;
-        }
-      } else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {//not-ascii
-        escape = false;
-      }
-      if (!escape) {
-        if (outBuf != null)
-          outBuf.append(c);
+      if (!needsEscape(c, encodePercent)) {
+        outBuf.append(c);
+      } else if (c < 0x80) {
+        appendEscaped(outBuf, c);
+      } else if (c < 0x800) {//as UTF-8
+        appendEscaped(outBuf, 0xC0 | (c >> 6));
+        appendEscaped(outBuf, 0x80 | (c & 0x3F));
       } else {
-        //escape
-        if (outBuf == null) {
-          outBuf = new StringBuilder(in.length() + 5*3);
-          outBuf.append(in,0,i);
-          formatter = new Formatter(outBuf);
-        }
-        //leading %, 0 padded, width 2, capital hex
-        formatter.format("%%%02X",(int)c);//TODO
+        appendEscaped(outBuf, 0xE0 | (c >> 12));
+        appendEscaped(outBuf, 0x80 | ((c >> 6) & 0x3F));
+        appendEscaped(outBuf, 0x80 | (c & 0x3F));
       }
     }
-    return outBuf != null ? outBuf : in;
+    return outBuf;
+  }
+
+  private static boolean needsEscape(char c, boolean encodePercent) {
+    if (c < 128) {
+      return !asciiQueryChars.get(c) || (encodePercent && c == '%');
+    }
+    //not-ascii; surrogates aren't controls or spaces, so they're never split
+    return Character.isISOControl(c) || Character.isSpaceChar(c);
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /** Appends a byte as a percent escape: a leading %, and 2 capital hex digits. */
+  private static void appendEscaped(StringBuilder outBuf, int b) {
+    outBuf.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
   }
 
   protected static final BitSet asciiQueryChars;
@@ -0,0 +1,157 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the servlet request body to the JDK client using a {@link ReadListener}, so no thread
+ * waits on a slow uploading client.  Data is only read while the client has outstanding demand,
+ * which propagates the upstream connection's backpressure to the servlet client.
+ * <p>
+ * The listener is registered on construction, which must happen on a container thread after
+ * {@link jakarta.servlet.ServletRequest#startAsync()}.
+ */
+final class ReadListenerBodyPublisher implements Flow.Publisher<ByteBuffer>, ReadListener {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private final ServletInputStream in;
+  private final AtomicLong demand = new AtomicLong();
+  private final AtomicInteger wip = new AtomicInteger();
+  private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+  private volatile boolean allDataRead;
+  private volatile Throwable error;
+  private volatile boolean done;//terminal signal sent, or cancelled
+
+  ReadListenerBodyPublisher(ServletInputStream in) {
+    this.in = in;
+    in.setReadListener(this);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    if (this.subscriber != null) {
+      // The request body can only be read once
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("The servlet request body was already published"));
+      return;
+    }
+    this.subscriber = subscriber;
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          error = new IllegalArgumentException("non-positive request: " + n);
+        } else {
+          demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+        }
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        done = true;
+      }
+    });
+    drain();
+  }
+
+  @Override
+  public void onDataAvailable() {
+    drain();
+  }
+
+  @Override
+  public void onAllDataRead() {
+    allDataRead = true;
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    error = t;
+    drain();
+  }
+
+  /** Serializes access to the input stream between container and client threads. */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      try {
+        drainOnce();
+      } catch (IOException e) {
+        error = e;
+        signalError();
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void drainOnce() throws IOException {
+    Flow.Subscriber<? super ByteBuffer> s = subscriber;
+    if (s == null || done) {
+      return;
+    }
+    if (error != null) {
+      signalError();
+      return;
+    }
+    // isReady() returning false means the container will call onDataAvailable later
+    while (demand.get() > 0 && !in.isFinished() && in.isReady()) {
+      byte[] chunk = new byte[CHUNK_SIZE];//handed off; the client may hold on to it
+      int read = in.read(chunk);
+      if (read == -1) {
+        break;
+      }
+      if (read > 0) {
+        demand.decrementAndGet();
+        s.onNext(ByteBuffer.wrap(chunk, 0, read));
+      }
+    }
+    if (allDataRead || in.isFinished()) {
+      done = true;
+      s.onComplete();
+    }
+  }
+
+  private void signalError() {
+    Flow.Subscriber<? super ByteBuffer> s = subscriber;
+    if (s != null && !done) {
+      done = true;
+      s.onError(error);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical concurrent requests (a "single flight"): while a request is in flight to the
+ * target, requests with the same key wait for it and get a copy of its response instead of being
+ * sent too.  The key is the URI requested from the target plus the values of a configured set of
+ * request headers, and of the conditional headers.
+ * <p>
+ * The response body is buffered to be fanned out, so only responses with a Content-Length of up to
+ * a maximum size are shared; others, e.g. server-sent events, are streamed to the request that was
+ * sent.  Only responses a shared cache could store are shared (not with Set-Cookie, private or
+ * no-store), and that don't vary on request headers other than the key's.  Otherwise, and when
+ * the wait times out or the request fails, the waiting requests are sent individually.  Instances
+ * are thread-safe.
+ *
+ * @see ProxyServlet#P_COALESCE
+ */
+public class RequestCoalescer {
+
+  /** Sends a request to the target. */
+  public interface Upstream {
+    HttpResponse execute() throws IOException;
+  }
+
+  /** Headers that always distinguish requests, since the target answers them differently. */
+  private static final String[] CONDITIONAL_HEADERS = {HttpHeaders.IF_NONE_MATCH, HttpHeaders.IF_MODIFIED_SINCE};
+
+  private final String[] keyHeaders;
+  private final long maxBodySize;
+  private final long timeoutMillis;
+  private final Map<String, CompletableFuture<SharedResponse>> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder leaders = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+
+  /**
+   * @param keyHeaders the request headers whose values are part of the key, e.g. Accept-Encoding
+   * @param maxBodySize the maximum size of a response body to share, in bytes
+   * @param timeoutMillis how long a request waits for the one in flight before it's sent itself
+   */
+  public RequestCoalescer(String[] keyHeaders, long maxBodySize, long timeoutMillis) {
+    this.keyHeaders = keyHeaders.clone();
+    this.maxBodySize = maxBodySize;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** Whether the request may be coalesced: a GET without a Range. */
+  public boolean isCoalescable(HttpRequest proxyRequest) {
+    return CacheSupport.isCacheableRequest(proxyRequest);
+  }
+
+  /** The key identifying requests that get the same response. */
+  public String key(HttpRequest proxyRequest) {
+    StringBuilder key = new StringBuilder(proxyRequest.getRequestLine().getUri());
+    appendHeaders(key, proxyRequest, keyHeaders);
+    appendHeaders(key, proxyRequest, CONDITIONAL_HEADERS);
+    return key.toString();
+  }
+
+  private static void appendHeaders(StringBuilder key, HttpRequest request, String[] names) {
+    for (String name : names) {
+      key.append('\n');
+      for (Header header : request.getHeaders(name)) {
+        key.append(header.getValue().trim()).append(',');
+      }
+    }
+  }
+
+  /**
+   * Executes a {@link #isCoalescable(HttpRequest) coalescable} request, or waits for an identical
+   * one in flight and returns a copy of its response.
+   */
+  public HttpResponse execute(HttpRequest proxyRequest, Upstream upstream) throws IOException {
+    String key = key(proxyRequest);
+    CompletableFuture<SharedResponse> flight = new CompletableFuture<>();
+    CompletableFuture<SharedResponse> leading = inFlight.putIfAbsent(key, flight);
+    if (leading == null) {
+      leaders.increment();
+      return lead(key, flight, upstream);
+    }
+    SharedResponse shared = await(leading);
+    if (shared == null) {
+      fallbacks.increment();
+      return upstream.execute();
+    }
+    coalesced.increment();
+    return shared.toResponse();
+  }
+
+  private HttpResponse lead(String key, CompletableFuture<SharedResponse> flight, Upstream upstream)
+          throws IOException {
+    SharedResponse shared = null;
+    try {
+      HttpResponse response = upstream.execute();
+      if (!isShareable(response)) {
+        return response;
+      }
+      HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        shared = new SharedResponse(response.getStatusLine(), response.getAllHeaders(), null);
+        return shared.toResponse();
+      }
+      // Its Content-Length is within the limit
+      byte[] body;
+      try {
+        body = EntityUtils.toByteArray(entity);//releases the connection
+      } catch (IOException | RuntimeException e) {
+        if (response instanceof Closeable) {
+          ((Closeable) response).close();
+        }
+        throw e;
+      }
+      shared = new SharedResponse(response.getStatusLine(),
+              CacheSupport.withContentLength(response.getAllHeaders(), body.length), body);
+      return shared.toResponse();
+    } finally {
+      inFlight.remove(key, flight);
+      flight.complete(shared);//null makes the others send their own requests
+    }
+  }
+
+  private boolean isShareable(HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+    // Without a length it may be streamed for long, e.g. events; it mustn't be held back to buffer it
+    if (entity != null && (entity.getContentLength() < 0 || entity.getContentLength() > maxBodySize)) {
+      return false;
+    }
+    if (response.getFirstHeader("Set-Cookie") != null) {
+      return false;
+    }
+    for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+      for (String name : vary.getValue().split(",")) {
+        name = name.trim();
+        if (!name.isEmpty() && !isKeyHeader(name)) {
+          return false;//including "*"; the waiting requests may differ in it
+        }
+      }
+    }
+    Map<String, String> cacheControl = CacheSupport.cacheControl(response);
+    return !cacheControl.containsKey("private") && !cacheControl.containsKey("no-store");
+  }
+
+  private boolean isKeyHeader(String name) {
+    for (String keyHeader : keyHeaders) {
+      if (keyHeader.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SharedResponse await(CompletableFuture<SharedResponse> flight) throws IOException {
+    try {
+      return flight.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a coalesced request");
+    } catch (ExecutionException | TimeoutException e) {
+      return null;
+    }
+  }
+
+  /** The number of requests sent to the target on behalf of others waiting for them. */
+  public long getLeaders() {
+    return leaders.sum();
+  }
+
+  /** The number of requests answered with a copy of another one's response. */
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  /** The number of waiting requests sent individually after all, e.g. on a timeout or large body. */
+  public long getFallbacks() {
+    return fallbacks.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "RequestCoalescer{inFlight=" + inFlight.size() + ", leaders=" + getLeaders()
+            + ", coalesced=" + getCoalesced() + ", fallbacks=" + getFallbacks() + "}";
+  }
+
+  /** A response buffered to be copied for every request waiting for it. */
+  private static final class SharedResponse {
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    private final byte[] body;//null if there's no entity
+
+    SharedResponse(StatusLine statusLine, Header[] headers, byte[] body) {
+      this.statusLine = statusLine;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    HttpResponse toResponse() {
+      HttpResponse response = new BasicHttpResponse(statusLine);
+      response.setHeaders(headers);
+      if (body != null) {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        Header contentType = response.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+        if (contentType != null) {
+          entity.setContentType(contentType);
+        }
+        response.setEntity(entity);
+      }
+      return response;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A streaming stage transforming response bodies as {@link ProxyServlet} copies them to the
+ * servlet client.  The servlet's transformers, from
+ * {@link ProxyServlet#createResponseBodyTransformers()}, form an ordered chain: each
+ * {@link Stage} sees the chunks the previous one wrote, once, and writes its own to the next, the
+ * last one to the client.  A stage may pass a chunk on as is, replace it with other bytes (any
+ * number of chunks, including bytes held back from previous ones), or drop it.
+ * <p>
+ * Whether a transformer applies is decided per response once its headers are known, typically by
+ * {@link #mediaType(HttpResponse) media type}.  When none applies the body is copied as usual,
+ * without any of this.  If any that applies may change the length of the body, the target's
+ * Content-Length isn't copied, and the container sends the body chunked (or computes the length
+ * itself, if it buffers the whole body).
+ * <p>
+ * A transformer is shared by all responses; the per response state is a {@link Stage}.  Stages see
+ * bodies as encoded by the target (see Content-Encoding), unless
+ * {@link ProxyServlet#P_HANDLECOMPRESSION} has them decoded.  Bodies aren't transformed in
+ * {@link ProxyServlet#P_ASYNC} mode.
+ */
+public interface ResponseBodyTransformer {
+
+  /**
+   * Whether this transforms the body of {@code proxyResponse}.  Called before the response headers
+   * are copied to the client.
+   */
+  boolean appliesTo(HttpServletRequest servletRequest, HttpResponse proxyResponse);
+
+  /**
+   * Whether transformed bodies have as many bytes as the original ones, so the target's
+   * Content-Length still holds.  Defaults to false.
+   */
+  default boolean preservesLength() {
+    return false;
+  }
+
+  /**
+   * Starts transforming the body of a response this {@link #appliesTo}.
+   *
+   * @param next where the transformed body goes
+   */
+  Stage open(HttpServletRequest servletRequest, HttpResponse proxyResponse, Sink next)
+          throws IOException;
+
+  /** Takes chunks of a response body. */
+  interface Sink {
+    /**
+     * Takes the remaining bytes of {@code data}, which must all be consumed.  The buffer is only
+     * valid during the call: it's reused afterwards, so it mustn't be kept, nor modified.
+     */
+    void write(ByteBuffer data) throws IOException;
+  }
+
+  /** Transforms one response body. */
+  interface Stage extends Sink {
+    /** Called at the end of the body, to write whatever is held back.  Does nothing by default. */
+    default void finish() throws IOException {
+    }
+  }
+
+  /**
+   * The media type of a response, without parameters and in lower case, e.g. {@code text/html};
+   * null if it has no Content-Type.
+   */
+  static String mediaType(HttpResponse proxyResponse) {
+    Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+    if (contentType == null) {
+      return null;
+    }
+    String value = contentType.getValue();
+    int semicolon = value.indexOf(';');
+    return (semicolon < 0 ? value : value.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory HTTP cache of proxied responses, shared by all clients, following RFC 9111 for a
+ * shared cache.  Responses are keyed by the URI requested from the target plus, per the response's
+ * Vary header, the values of the request headers it names.  It's bounded by the total size of the
+ * stored responses, evicting the least recently used URIs first.
+ * <p>
+ * Bodies are stored on the heap or, with {@link Storage#DIRECT}, off-heap.  Instances are
+ * thread-safe.
+ * <p>
+ * A stale response may still be served while it's refreshed in the background, or when the target
+ * fails, within the windows of its stale-while-revalidate and stale-if-error directives (RFC 5861),
+ * or the configured defaults if larger.
+ *
+ * @see ProxyServlet#P_CACHE
+ */
+public class ResponseCache {
+
+  /** Where response bodies are stored. */
+  public enum Storage { HEAP, DIRECT }
+
+  /** A rough per entry overhead, in bytes, for size accounting. */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxSize;
+  private final long maxEntrySize;
+  private final Storage storage;
+  private long staleWhileRevalidate;
+  private long staleIfError;
+  // guarded by itself; access-ordered, i.e. LRU first
+  private final LinkedHashMap<String, Variants> uris = new LinkedHashMap<>(64, 0.75f, true);
+  private long size;//guarded by uris
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder revalidations = new LongAdder();
+  private final LongAdder stores = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder staleOnErrors = new LongAdder();
+
+  /**
+   * @param maxSize the maximum total size of the stored responses, in bytes
+   * @param maxEntrySize the maximum size of a response body to store, in bytes
+   */
+  public ResponseCache(long maxSize, long maxEntrySize, Storage storage) {
+    if (maxEntrySize > maxSize) {
+      throw new IllegalArgumentException("maxEntrySize " + maxEntrySize + " exceeds maxSize " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    this.storage = storage;
+  }
+
+  /** The maximum size of a response body to store, in bytes. */
+  public long getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  /**
+   * Sets how long after a response became stale it may still be served while it's refreshed, in
+   * millis, for responses without a longer stale-while-revalidate directive.  Defaults to 0.
+   */
+  public void setStaleWhileRevalidate(long millis) {
+    this.staleWhileRevalidate = millis;
+  }
+
+  /**
+   * Sets how long after a response became stale it may still be served when the target fails, in
+   * millis, for responses without a longer stale-if-error directive.  Defaults to 0.
+   */
+  public void setStaleIfError(long millis) {
+    this.staleIfError = millis;
+  }
+
+  /** Whether a stale entry may be served at {@code now} while it's refreshed in the background. */
+  public boolean isServableWhileRevalidating(Entry entry, long now) {
+    long window = Math.max(staleWhileRevalidate, entry.staleWhileRevalidate);
+    return !entry.mustRevalidate && window > 0 && entry.staleness(now) <= window;
+  }
+
+  /**
+   * Whether a stale entry may be served at {@code now} instead of an error: a failed request or a
+   * 500, 502, 503 or 504 response.
+   */
+  public boolean isServableOnError(Entry entry, long now) {
+    long window = Math.max(staleIfError, entry.staleIfError);
+    return !entry.mustRevalidate && window > 0 && entry.staleness(now) <= window;
+  }
+
+  /** The stored response for the request, fresh or not, or null. */
+  public Entry lookup(HttpRequest proxyRequest) {
+    String uri = proxyRequest.getRequestLine().getUri();
+    synchronized (uris) {
+      Variants variants = uris.get(uri);
+      return variants == null ? null : variants.entries.get(variantKey(variants.varyNames, proxyRequest));
+    }
+  }
+
+  /**
+   * Stores a response, replacing any stored for the same request.  The response must be
+   * {@link CacheSupport#isStorable storable}.
+   *
+   * @param body the complete response body
+   * @param requestTime when the request was sent
+   * @param responseTime when the response was received
+   * @return the new entry, or null if it's too large to store
+   */
+  public Entry store(HttpRequest proxyRequest, HttpResponse response, byte[] body,
+                     long requestTime, long responseTime) {
+    if (body.length > maxEntrySize) {
+      return null;
+    }
+    Entry entry = new Entry(response.getStatusLine().getStatusCode(),
+            response.getStatusLine().getReasonPhrase(), CacheSupport.withContentLength(response.getAllHeaders(), body.length),
+            storage == Storage.DIRECT ? ByteBuffer.allocateDirect(body.length).put(body).flip() : ByteBuffer.wrap(body),
+            requestTime, responseTime);
+    put(proxyRequest, varyNames(response), entry);
+    stores.increment();
+    return entry;
+  }
+
+  /**
+   * Freshens a stored response with the headers of a 304 (Not Modified) response to a request
+   * revalidating it (RFC 9111 4.3.4).
+   *
+   * @return the freshened entry
+   */
+  public Entry update(HttpRequest proxyRequest, Entry entry, HttpResponse notModified,
+                      long requestTime, long responseTime) {
+    List<Header> headers = new ArrayList<>(Arrays.asList(entry.headers));
+    for (Header header : notModified.getAllHeaders()) {
+      String name = header.getName();
+      if (name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH) || name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)) {
+        continue;
+      }
+      headers.removeIf(h -> h.getName().equalsIgnoreCase(name));
+    }
+    for (Header header : notModified.getAllHeaders()) {
+      String name = header.getName();
+      if (!name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH) && !name.equalsIgnoreCase(HttpHeaders.TRANSFER_ENCODING)) {
+        headers.add(header);
+      }
+    }
+    Entry freshened = new Entry(entry.statusCode, entry.reasonPhrase, headers.toArray(new Header[0]),
+            entry.body, requestTime, responseTime);
+    put(proxyRequest, entry.varyNames, freshened);
+    return freshened;
+  }
+
+  /** Removes all responses stored for a URI, e.g. after it was modified (RFC 9111 4.4). */
+  public void invalidate(String uri) {
+    synchronized (uris) {
+      Variants variants = uris.remove(uri);
+      if (variants != null) {
+        size -= variants.size;
+      }
+    }
+  }
+
+  private void put(HttpRequest proxyRequest, String[] varyNames, Entry entry) {
+    entry.varyNames = varyNames;
+    String uri = proxyRequest.getRequestLine().getUri();
+    String variantKey = variantKey(varyNames, proxyRequest);
+    synchronized (uris) {
+      Variants variants = uris.get(uri);
+      if (variants == null || !Arrays.equals(variants.varyNames, varyNames)) {
+        if (variants != null) {
+          size -= variants.size;//the Vary header changed; the other variants are unreachable now
+        }
+        variants = new Variants(varyNames);
+        uris.put(uri, variants);
+      }
+      Entry replaced = variants.entries.put(variantKey, entry);
+      long delta = entry.size() - (replaced == null ? 0 : replaced.size());
+      variants.size += delta;
+      size += delta;
+      Iterator<Variants> lru = uris.values().iterator();
+      while (size > maxSize && lru.hasNext()) {
+        Variants eldest = lru.next();
+        if (eldest == variants) {
+          break;//the one just stored is the most recently used
+        }
+        lru.remove();
+        size -= eldest.size;
+        evictions.increment();
+      }
+    }
+  }
+
+  private static String[] varyNames(HttpResponse response) {
+    List<String> names = new ArrayList<>();
+    for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+      for (String name : vary.getValue().split(",")) {
+        name = name.trim().toLowerCase(Locale.ROOT);
+        if (!name.isEmpty()) {
+          names.add(name);
+        }
+      }
+    }
+    String[] varyNames = names.toArray(new String[0]);
+    Arrays.sort(varyNames);
+    return varyNames;
+  }
+
+  private static String variantKey(String[] varyNames, HttpRequest request) {
+    if (varyNames.length == 0) {
+      return "";
+    }
+    StringBuilder key = new StringBuilder();
+    for (String name : varyNames) {
+      for (Header header : request.getHeaders(name)) {
+        key.append(header.getValue().trim()).append(',');
+      }
+      key.append('\n');
+    }
+    return key.toString();
+  }
+
+  void recordHit() {
+    hits.increment();
+  }
+
+  void recordMiss() {
+    misses.increment();
+  }
+
+  void recordRevalidation() {
+    revalidations.increment();
+  }
+
+  void recordStaleHit() {
+    staleHits.increment();
+  }
+
+  void recordStaleOnError() {
+    staleOnErrors.increment();
+  }
+
+  /** The number of requests answered from the cache without contacting the target. */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /** The number of cacheable requests for which the target sent a full response. */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** The number of requests answered from the cache after the target confirmed it's unmodified (304). */
+  public long getRevalidations() {
+    return revalidations.sum();
+  }
+
+  /** The number of requests answered with a stale response while it was refreshed in the background. */
+  public long getStaleHits() {
+    return staleHits.sum();
+  }
+
+  /** The number of requests answered with a stale response because the target failed. */
+  public long getStaleOnErrors() {
+    return staleOnErrors.sum();
+  }
+
+  /** The number of responses stored. */
+  public long getStores() {
+    return stores.sum();
+  }
+
+  /** The number of URIs evicted to make room. */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** The approximate total size of the stored responses, in bytes. */
+  public long getSize() {
+    synchronized (uris) {
+      return size;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ResponseCache{size=" + getSize() + "/" + maxSize + ", storage=" + storage
+            + ", hits=" + getHits() + ", misses=" + getMisses() + ", revalidations=" + getRevalidations()
+            + ", staleHits=" + getStaleHits() + ", staleOnErrors=" + getStaleOnErrors()
+            + ", stores=" + getStores() + ", evictions=" + getEvictions() + "}";
+  }
+
+  private static final class Variants {
+    final String[] varyNames;
+    final Map<String, Entry> entries = new HashMap<>(2);
+    long size;
+
+    Variants(String[] varyNames) {
+      this.varyNames = varyNames;
+    }
+  }
+
+  /**
+   * A stored response.  It's immutable, but for whether it's being refreshed; its body can be read
+   * concurrently.
+   */
+  public static final class Entry {
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Header[] headers;
+    private final ByteBuffer body;//read through duplicates
+    private final long responseTime;
+    private final long initialAge;
+    private final long freshnessLifetime;
+    private final boolean mustRevalidate;
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final String etag;
+    private final String lastModified;
+    private String[] varyNames;//set once, before it's published
+
+    Entry(int statusCode, String reasonPhrase, Header[] headers, ByteBuffer body,
+          long requestTime, long responseTime) {
+      this.statusCode = statusCode;
+      this.reasonPhrase = reasonPhrase;
+      this.headers = headers;
+      this.body = body;
+      this.responseTime = responseTime;
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, reasonPhrase);
+      response.setHeaders(headers);
+      Map<String, String> cacheControl = CacheSupport.cacheControl(response);
+      long dateValue = CacheSupport.dateHeader(response, HttpHeaders.DATE);
+      this.initialAge = CacheSupport.initialAge(response, requestTime, responseTime);
+      this.freshnessLifetime = CacheSupport.freshnessLifetime(response, cacheControl,
+              dateValue >= 0 ? dateValue : responseTime);
+      // s-maxage implies proxy-revalidate for a shared cache
+      this.mustRevalidate = cacheControl.containsKey("must-revalidate")
+              || cacheControl.containsKey("proxy-revalidate") || cacheControl.containsKey("s-maxage");
+      this.staleWhileRevalidate = CacheSupport.deltaMillis(cacheControl, "stale-while-revalidate");
+      this.staleIfError = CacheSupport.deltaMillis(cacheControl, "stale-if-error");
+      this.etag = CacheSupport.firstHeaderValue(response, HttpHeaders.ETAG);
+      this.lastModified = CacheSupport.firstHeaderValue(response, HttpHeaders.LAST_MODIFIED);
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getLastModified() {
+      return lastModified;
+    }
+
+    /** The length of the body, in bytes. */
+    public int getBodyLength() {
+      return body.remaining();
+    }
+
+    /** The age of the response at {@code now}, in millis (RFC 9111 4.2.3). */
+    public long currentAge(long now) {
+      return initialAge + Math.max(0, now - responseTime);
+    }
+
+    /** The freshness lifetime of the response, in millis. */
+    public long getFreshnessLifetime() {
+      return freshnessLifetime;
+    }
+
+    public boolean isFresh(long now) {
+      return currentAge(now) < freshnessLifetime;
+    }
+
+    /** How long the response has been stale at {@code now}, in millis; negative while it's fresh. */
+    public long staleness(long now) {
+      return currentAge(now) - freshnessLifetime;
+    }
+
+    /**
+     * Marks the entry as being refreshed in the background.
+     *
+     * @return false if it's being refreshed already
+     */
+    boolean startRefresh() {
+      return refreshing.compareAndSet(false, true);
+    }
+
+    void endRefresh() {
+      refreshing.set(false);
+    }
+
+    /** Whether the response must not be served stale (must-revalidate and the like). */
+    public boolean isMustRevalidate() {
+      return mustRevalidate;
+    }
+
+    /** Whether the response can be revalidated with a conditional request. */
+    public boolean hasValidators() {
+      return etag != null || lastModified != null;
+    }
+
+    /**
+     * Whether the response may be served without revalidation to a request with the given
+     * Cache-Control directives (max-age, min-fresh and max-stale).
+     */
+    public boolean satisfies(Map<String, String> requestCacheControl, long now) {
+      long age = currentAge(now);
+      long maxAge = CacheSupport.deltaMillis(requestCacheControl, "max-age");
+      if (maxAge >= 0 && age > maxAge) {
+        return false;
+      }
+      long minFresh = CacheSupport.deltaMillis(requestCacheControl, "min-fresh");
+      if (minFresh >= 0 && freshnessLifetime - age < minFresh) {
+        return false;
+      }
+      if (age < freshnessLifetime) {
+        return true;
+      }
+      if (mustRevalidate || !requestCacheControl.containsKey("max-stale")) {
+        return false;
+      }
+      long maxStale = CacheSupport.deltaMillis(requestCacheControl, "max-stale");
+      return maxStale < 0 /* any staleness */ || age - freshnessLifetime <= maxStale;
+    }
+
+    /** Makes {@code proxyRequest} a conditional request revalidating this response. */
+    public void addValidators(HttpRequest proxyRequest) {
+      if (etag != null) {
+        proxyRequest.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+      }
+      if (lastModified != null) {
+        proxyRequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+      }
+    }
+
+    /** A response for serving this entry at {@code now}, with an Age header. */
+    public HttpResponse toResponse(long now) {
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, reasonPhrase);
+      response.setHeaders(headers);
+      response.setHeader(HttpHeaders.AGE, Long.toString(currentAge(now) / 1000));
+      if (body.hasArray()) {
+        response.setEntity(new ByteArrayEntity(body.array(), body.arrayOffset() + body.position(), body.remaining()));
+      } else {
+        response.setEntity(new InputStreamEntity(new ByteBufferInputStream(body.duplicate()), body.remaining()));
+      }
+      return response;
+    }
+
+    long size() {
+      long size = ENTRY_OVERHEAD + body.remaining();
+      for (Header header : headers) {
+        size += 2L * (header.getName().length() + header.getValue().length());
+      }
+      return size;
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes a response body received by the JDK client to the servlet client as it arrives.  One
+ * item is requested at a time, so a slow servlet client slows down the upstream read.
+ */
+final class ServletResponseBodySubscriber implements BodySubscriber<Void> {
+
+  private final OutputStream out;
+  private final CompletableFuture<Void> result = new CompletableFuture<>();
+  private Flow.Subscription subscription;
+  private byte[] copyBuffer;//for buffers without an accessible array
+
+  ServletResponseBodySubscriber(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override
+  public CompletionStage<Void> getBody() {
+    return result;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    subscription.request(1);
+  }
+
+  @Override
+  public void onNext(List<ByteBuffer> items) {
+    try {
+      for (ByteBuffer item : items) {
+        write(item);
+      }
+      // Flush what upstream has delivered before waiting for more -- needed for SSE
+      out.flush();
+    } catch (IOException e) {
+      // The servlet client has most likely gone away; stop reading from upstream.
+      subscription.cancel();
+      result.completeExceptionally(e);
+      return;
+    }
+    subscription.request(1);
+  }
+
+  private void write(ByteBuffer item) throws IOException {
+    if (item.hasArray()) {
+      out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+      return;
+    }
+    if (copyBuffer == null) {
+      copyBuffer = new byte[Math.max(item.remaining(), 8 * 1024)];
+    }
+    while (item.hasRemaining()) {
+      int len = Math.min(copyBuffer.length, item.remaining());
+      item.get(copyBuffer, 0, len);
+      out.write(copyBuffer, 0, len);
+    }
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    result.completeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    result.complete(null);
+  }
+}
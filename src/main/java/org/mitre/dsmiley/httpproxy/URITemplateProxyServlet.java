@@ -16,20 +16,20 @@
 
 package org.mitre.dsmiley.httpproxy;
 
-import org.apache.http.NameValuePair;
+import org.apache.http.HttpHost;
 import org.apache.http.client.utils.URIUtils;
-import org.apache.http.client.utils.URLEncodedUtils;
 
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
-import java.util.LinkedHashMap;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,13 +60,20 @@ public class URITemplateProxyServlet extends ProxyServlet {
   private static final String ATTR_QUERY_STRING =
           URITemplateProxyServlet.class.getSimpleName() + ".queryString";
 
+  /** The most distinct target hosts cached; beyond that, the cache starts over. */
+  private static final int MAX_CACHED_HOSTS = 1024;
+
   protected String targetUriTemplate;//has {name} parts
+  private CompiledTemplate compiledTemplate;
+  /** By "scheme://authority" of rendered target URIs. */
+  private final ConcurrentHashMap<String, HttpHost> targetHosts = new ConcurrentHashMap<>();
 
   @Override
   protected void initTarget() throws ServletException {
     targetUriTemplate = getConfigParam(P_TARGET_URI);
     if (targetUriTemplate == null)
       throw new ServletException(P_TARGET_URI+" is required.");
+    compiledTemplate = new CompiledTemplate(targetUriTemplate);
 
     //leave this.target* null to prevent accidental mis-use
   }
@@ -84,65 +91,184 @@ public class URITemplateProxyServlet extends ProxyServlet {
      * we can keep the proxy parameters in the query string and not
      * have to add them to a URL encoded form attachment.
      */
-    String requestQueryString = servletRequest.getQueryString();
-    String queryString = "";
-    if (requestQueryString != null) {
-      queryString = "?" + requestQueryString;//no "?" but might have "#"
+    String queryString = servletRequest.getQueryString();
+    if (queryString == null) {
+      queryString = "";
     }
-    int hash = queryString.indexOf('#');
+    int hash = queryString.indexOf('#');//no "?" but might have "#"
     if (hash >= 0) {
       queryString = queryString.substring(0, hash);
     }
-    List<NameValuePair> pairs;
-    try {
-      //note: HttpClient 4.2 lets you parse the string without building the URI
-      pairs = URLEncodedUtils.parse(new URI(queryString), "UTF-8");
-    } catch (URISyntaxException e) {
-      throw new ServletException("Unexpected URI parsing error on " + queryString, e);
-    }
-    LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
-    for (NameValuePair pair : pairs) {
-      params.put(pair.getName(), pair.getValue());
+
+    //Take the template's values out of the query in one pass; the rest is passed through as is
+    String[] names = compiledTemplate.names;
+    String[] values = new String[names.length];
+    StringBuilder newQueryBuf = null;//null while the query has no template values
+    int pairStart = 0;
+    while (pairStart < queryString.length()) {
+      int pairEnd = queryString.indexOf('&', pairStart);
+      if (pairEnd < 0) {
+        pairEnd = queryString.length();
+      }
+      int nameEnd = queryString.indexOf('=', pairStart);
+      if (nameEnd < 0 || nameEnd > pairEnd) {
+        nameEnd = pairEnd;
+      }
+      int variable = pairEnd == pairStart ? -1 : indexOfName(names, queryString, pairStart, nameEnd);
+      if (variable >= 0) {
+        values[variable] = nameEnd == pairEnd ? "" : decode(queryString, nameEnd + 1, pairEnd);
+        if (newQueryBuf == null) {
+          newQueryBuf = new StringBuilder(queryString.length());
+          newQueryBuf.append(queryString, 0, Math.max(0, pairStart - 1));
+        }
+      } else if (newQueryBuf != null && pairEnd > pairStart) {
+        if (newQueryBuf.length() > 0)
+          newQueryBuf.append('&');
+        newQueryBuf.append(queryString, pairStart, pairEnd);
+      }
+      pairStart = pairEnd + 1;
     }
 
     //Now rewrite the URL
-    StringBuffer urlBuf = new StringBuffer();//note: StringBuilder isn't supported by Matcher
-    Matcher matcher = TEMPLATE_PATTERN.matcher(targetUriTemplate);
-    while (matcher.find()) {
-      String arg = matcher.group(1);
-      String replacement = params.remove(arg);//note we remove
-      if (replacement == null) {
-        throw new ServletException("Missing HTTP parameter "+arg+" to fill the template");
+    for (int i = 0; i < names.length; i++) {
+      if (values[i] == null) {
+        throw new ServletException("Missing HTTP parameter "+names[i]+" to fill the template");
       }
-      matcher.appendReplacement(urlBuf, replacement);
     }
-    matcher.appendTail(urlBuf);
-    String newTargetUri = urlBuf.toString();
+    String newTargetUri = compiledTemplate.render(values);
     servletRequest.setAttribute(ATTR_TARGET_URI, newTargetUri);
-    URI targetUriObj;
+    servletRequest.setAttribute(ATTR_TARGET_HOST, getTargetHost(newTargetUri));
+
+    servletRequest.setAttribute(ATTR_QUERY_STRING,
+            newQueryBuf == null ? queryString : newQueryBuf.toString());
+
+    super.service(servletRequest, servletResponse);
+  }
+
+  /** The index of the (URL encoded) name in {@code names}, or -1. */
+  private static int indexOfName(String[] names, String query, int start, int end) {
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      if (end - start == name.length() && query.regionMatches(start, name, 0, name.length())) {
+        return i;
+      }
+    }
+    for (int i = start; i < end; i++) {
+      char c = query.charAt(i);
+      if (c == '%' || c == '+') {
+        return Arrays.asList(names).indexOf(decode(query, start, end));
+      }
+    }
+    return -1;
+  }
+
+  /** URL decodes part of the query string, leniently. */
+  private static String decode(String query, int start, int end) {
+    String encoded = query.substring(start, end);
+    if (encoded.indexOf('%') < 0 && encoded.indexOf('+') < 0) {
+      return encoded;
+    }
     try {
-      targetUriObj = new URI(newTargetUri);
-    } catch (Exception e) {
-      throw new ServletException("Rewritten targetUri is invalid: " + newTargetUri,e);
+      return URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return encoded;//a stray "%"
     }
-    servletRequest.setAttribute(ATTR_TARGET_HOST, URIUtils.extractHost(targetUriObj));
-
-    //Determine the new query string based on removing the used names
-    StringBuilder newQueryBuf = new StringBuilder(queryString.length());
-    for (Map.Entry<String, String> nameVal : params.entrySet()) {
-      if (newQueryBuf.length() > 0)
-        newQueryBuf.append('&');
-      newQueryBuf.append(nameVal.getKey()).append('=');
-      if (nameVal.getValue() != null)
-        newQueryBuf.append( URLEncoder.encode(nameVal.getValue(), "UTF-8"));
+  }
+
+  /**
+   * The host of a rendered target URI.  Hosts are cached per scheme and authority, so only the
+   * first request to a host parses a URI.
+   */
+  private HttpHost getTargetHost(String targetUri) throws ServletException {
+    int schemeEnd = targetUri.indexOf("://");
+    int authorityEnd = schemeEnd < 0 ? -1 : indexOfAny(targetUri, "/?#", schemeEnd + 3);
+    String key = schemeEnd < 0 ? targetUri : targetUri.substring(0, authorityEnd);
+    HttpHost host = targetHosts.get(key);
+    if (host == null) {
+      try {
+        host = URIUtils.extractHost(new URI(key));
+      } catch (Exception e) {
+        throw new ServletException("Rewritten targetUri is invalid: " + targetUri,e);
+      }
+      if (host != null && schemeEnd >= 0) {
+        if (targetHosts.size() >= MAX_CACHED_HOSTS) {
+          targetHosts.clear();
+        }
+        targetHosts.put(key, host);
+      }
     }
-    servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryBuf.toString());
+    return host;
+  }
 
-    super.service(servletRequest, servletResponse);
+  private static int indexOfAny(String s, String chars, int from) {
+    for (int i = from; i < s.length(); i++) {
+      if (chars.indexOf(s.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return s.length();
   }
 
   @Override
   protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
     return (String) servletRequest.getAttribute(ATTR_QUERY_STRING);
   }
+
+  /**
+   * A target URI template compiled into the literal text between its variables, so that it's
+   * rendered without matching {@link #TEMPLATE_PATTERN} per request.
+   */
+  static final class CompiledTemplate {
+    /** The distinct variable names, in order of first appearance. */
+    final String[] names;
+    /** The text before each variable, and after the last one. */
+    private final String[] literals;
+    /** The index into {@link #names} of each variable. */
+    private final int[] variables;
+    private final int literalsLength;
+
+    CompiledTemplate(String template) {
+      List<String> names = new ArrayList<>();
+      List<String> literals = new ArrayList<>();
+      List<Integer> variables = new ArrayList<>();
+      Matcher matcher = TEMPLATE_PATTERN.matcher(template);
+      int last = 0;
+      while (matcher.find()) {
+        literals.add(template.substring(last, matcher.start()));
+        String name = matcher.group(1);
+        int index = names.indexOf(name);
+        if (index < 0) {
+          index = names.size();
+          names.add(name);
+        }
+        variables.add(index);
+        last = matcher.end();
+      }
+      literals.add(template.substring(last));
+      this.names = names.toArray(new String[0]);
+      this.literals = literals.toArray(new String[0]);
+      this.variables = new int[variables.size()];
+      int length = 0;
+      for (int i = 0; i < this.variables.length; i++) {
+        this.variables[i] = variables.get(i);
+      }
+      for (String literal : this.literals) {
+        length += literal.length();
+      }
+      this.literalsLength = length;
+    }
+
+    /** Renders the template with the values of {@link #names}. */
+    String render(String[] values) {
+      int length = literalsLength;
+      for (int variable : variables) {
+        length += values[variable].length();
+      }
+      StringBuilder uri = new StringBuilder(length);
+      for (int i = 0; i < variables.length; i++) {
+        uri.append(literals[i]).append(values[variables[i]]);
+      }
+      return uri.append(literals[variables.length]).toString();
+    }
+  }
 }
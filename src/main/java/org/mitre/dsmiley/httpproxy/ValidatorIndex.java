@@ -0,0 +1,265 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An index of the validators (ETag and Last-Modified) of the responses the target sent per URI,
+ * each kept for the response's freshness lifetime.  While that lasts, a conditional request from
+ * a client whose copy matches can be answered with a 304 (Not Modified) without asking the target.
+ * <p>
+ * It's a fixed size, two-way set associative table: a URI can only be in one of two slots, and
+ * displaces the entry expiring first.  It holds one small object per URI, and matching entity tags
+ * allocates nothing.  Only responses a shared cache may store, without Vary, are indexed.
+ * Instances are thread-safe.
+ *
+ * @see ProxyServlet#P_VALIDATORINDEX
+ */
+public class ValidatorIndex {
+
+  private final AtomicReferenceArray<Validators> slots;
+  private final int mask;
+  private final LongAdder notModified = new LongAdder();
+  private final LongAdder indexed = new LongAdder();
+
+  /** @param maxEntries the number of URIs the index has room for; rounded up to a power of 2 */
+  public ValidatorIndex(int maxEntries) {
+    int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, maxEntries - 1)) * 2);
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  private int firstSlot(String uri) {
+    int hash = uri.hashCode();
+    return (hash ^ (hash >>> 16)) & mask & ~1;
+  }
+
+  /**
+   * Returns a 304 (Not Modified) response if the request is a conditional GET or HEAD matching
+   * fresh validators, else null.
+   */
+  public HttpResponse notModified(HttpRequest proxyRequest, long now) {
+    String method = proxyRequest.getRequestLine().getMethod();
+    if (!method.equals("GET") && !method.equals("HEAD")) {
+      return null;
+    }
+    Header ifNoneMatch = proxyRequest.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+    Header ifModifiedSince = proxyRequest.getFirstHeader(HttpHeaders.IF_MODIFIED_SINCE);
+    if (ifNoneMatch == null && ifModifiedSince == null) {
+      return null;
+    }
+    if (CacheSupport.isNoCacheRequest(proxyRequest, CacheSupport.cacheControl(proxyRequest))) {
+      return null;
+    }
+    Validators validators = get(proxyRequest.getRequestLine().getUri(), now);
+    if (validators == null) {
+      return null;
+    }
+    // If-Modified-Since is ignored when If-None-Match is present (RFC 9110 13.1.3)
+    boolean matches = ifNoneMatch != null ? validators.matchesAny(ifNoneMatch.getValue())
+            : validators.notModifiedSince(ifModifiedSince.getValue());
+    if (!matches) {
+      return null;
+    }
+    notModified.increment();
+    return validators.toResponse(now);
+  }
+
+  private Validators get(String uri, long now) {
+    int first = firstSlot(uri);
+    for (int i = first; i <= first + 1; i++) {
+      Validators validators = slots.get(i);
+      if (validators != null && validators.expires > now && validators.uri.equals(uri)) {
+        return validators;
+      }
+    }
+    return null;
+  }
+
+  /** Indexes the validators of a response from the target, if it has any and is still fresh. */
+  public void record(HttpRequest proxyRequest, HttpResponse response, long now) {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+            || !CacheSupport.isCacheableRequest(proxyRequest)
+            || response.getFirstHeader(HttpHeaders.VARY) != null) {
+      return;
+    }
+    String etag = CacheSupport.firstHeaderValue(response, HttpHeaders.ETAG);
+    long lastModified = CacheSupport.dateHeader(response, HttpHeaders.LAST_MODIFIED);
+    if (etag == null && lastModified < 0) {
+      return;
+    }
+    Map<String, String> cacheControl = CacheSupport.cacheControl(response);
+    if (!CacheSupport.isStorable(proxyRequest, CacheSupport.cacheControl(proxyRequest), response, cacheControl)) {
+      return;
+    }
+    long dateValue = CacheSupport.dateHeader(response, HttpHeaders.DATE);
+    long freshness = CacheSupport.freshnessLifetime(response, cacheControl, dateValue >= 0 ? dateValue : now)
+            - CacheSupport.initialAge(response, now, now);
+    if (freshness <= 0) {
+      return;
+    }
+    String uri = proxyRequest.getRequestLine().getUri();
+    put(new Validators(uri, etag, lastModified, CacheSupport.firstHeaderValue(response, HttpHeaders.CACHE_CONTROL),
+            now + freshness));
+    indexed.increment();
+  }
+
+  private void put(Validators validators) {
+    int first = firstSlot(validators.uri);
+    Validators a = slots.get(first);
+    Validators b = slots.get(first + 1);
+    // replace the same URI, else an empty slot, else the one expiring first
+    int victim;
+    if (b != null && b.uri.equals(validators.uri)) {
+      victim = first + 1;
+    } else if (a == null || a.uri.equals(validators.uri)) {
+      victim = first;
+    } else if (b == null) {
+      victim = first + 1;
+    } else {
+      victim = a.expires <= b.expires ? first : first + 1;
+    }
+    slots.set(victim, validators);
+  }
+
+  /** Forgets the validators of a URI, e.g. after it was modified. */
+  public void invalidate(String uri) {
+    int first = firstSlot(uri);
+    for (int i = first; i <= first + 1; i++) {
+      Validators validators = slots.get(i);
+      if (validators != null && validators.uri.equals(uri)) {
+        slots.compareAndSet(i, validators, null);
+      }
+    }
+  }
+
+  /** The number of conditional requests answered with a 304 from the index. */
+  public long getNotModified() {
+    return notModified.sum();
+  }
+
+  /** The number of responses whose validators were indexed. */
+  public long getIndexed() {
+    return indexed.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "ValidatorIndex{capacity=" + slots.length() + ", indexed=" + getIndexed()
+            + ", notModified=" + getNotModified() + "}";
+  }
+
+  private static final class Validators {
+    final String uri;
+    final String etag;//null if none
+    final String opaqueEtag;//without W/
+    final long lastModified;//-1 if none
+    final String cacheControl;//repeated in the 304
+    final long expires;
+
+    Validators(String uri, String etag, long lastModified, String cacheControl, long expires) {
+      this.uri = uri;
+      this.etag = etag;
+      this.opaqueEtag = etag == null ? null : etag.startsWith("W/") ? etag.substring(2) : etag;
+      this.lastModified = lastModified;
+      this.cacheControl = cacheControl;
+      this.expires = expires;
+    }
+
+    /** Weak comparison (RFC 9110 8.8.3.2) against a list of entity tags, or "*". */
+    boolean matchesAny(String ifNoneMatch) {
+      if (ifNoneMatch.trim().equals("*")) {
+        return true;
+      }
+      if (etag == null) {
+        return false;
+      }
+      int start = 0;
+      while (start < ifNoneMatch.length()) {
+        int end = tagEnd(ifNoneMatch, start);
+        if (matches(ifNoneMatch, start, end)) {
+          return true;
+        }
+        start = end + 1;
+      }
+      return false;
+    }
+
+    /** The comma ending the tag at {@code start}, or the length; commas in an opaque tag don't count. */
+    private static int tagEnd(String tags, int start) {
+      boolean quoted = false;
+      for (int i = start; i < tags.length(); i++) {
+        char c = tags.charAt(i);
+        if (c == '"') {
+          quoted = !quoted;//an opaque tag can't contain a quote, nor escape one
+        } else if (c == ',' && !quoted) {
+          return i;
+        }
+      }
+      return tags.length();
+    }
+
+    private boolean matches(String tags, int start, int end) {
+      while (start < end && Character.isWhitespace(tags.charAt(start))) {
+        start++;
+      }
+      while (end > start && Character.isWhitespace(tags.charAt(end - 1))) {
+        end--;
+      }
+      if (tags.startsWith("W/", start)) {
+        start += 2;
+      }
+      return end - start == opaqueEtag.length() && tags.regionMatches(start, opaqueEtag, 0, opaqueEtag.length());
+    }
+
+    boolean notModifiedSince(String ifModifiedSince) {
+      if (lastModified < 0) {
+        return false;
+      }
+      Date since = DateUtils.parseDate(ifModifiedSince);
+      return since != null && lastModified <= since.getTime();
+    }
+
+    HttpResponse toResponse(long now) {
+      HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+      response.setHeader(HttpHeaders.DATE, DateUtils.formatDate(new Date(now)));
+      if (etag != null) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+      }
+      if (lastModified >= 0) {
+        response.setHeader(HttpHeaders.LAST_MODIFIED, DateUtils.formatDate(new Date(lastModified)));
+      }
+      if (cacheControl != null) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+      }
+      return response;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mitre.dsmiley.httpproxy;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import java.io.IOException;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a response body received by the JDK client to the servlet client using a
+ * {@link WriteListener}, so no thread waits on a slow downloading client.  The next item is only
+ * requested from upstream once the previous one has been handed to the container, which propagates
+ * the servlet client's backpressure to the upstream connection.
+ * <p>
+ * The listener is registered on construction, which must happen on a container thread after
+ * {@link jakarta.servlet.ServletRequest#startAsync()}.
+ */
+final class WriteListenerBodySubscriber implements BodySubscriber<Void>, WriteListener {
+
+  private final ServletOutputStream out;
+  private final CompletableFuture<Void> result = new CompletableFuture<>();
+  private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger wip = new AtomicInteger();
+  private volatile Flow.Subscription subscription;
+  private volatile boolean upstreamDone;
+  private volatile Throwable error;
+  private volatile boolean requested;
+  // only accessed while draining:
+  private boolean needsFlush;
+  private byte[] copyBuffer;
+
+  WriteListenerBodySubscriber(ServletOutputStream out) {
+    this.out = out;
+    out.setWriteListener(this);
+  }
+
+  @Override
+  public CompletionStage<Void> getBody() {
+    return result;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    this.subscription = subscription;
+    drain();
+  }
+
+  @Override
+  public void onNext(List<ByteBuffer> items) {
+    queue.addAll(items);
+    requested = false;//only onNext's single outstanding request can be answered
+    drain();
+  }
+
+  /** Called by the client on upstream failure, or by the container, e.g. when the servlet client went away. */
+  @Override
+  public void onError(Throwable throwable) {
+    error = throwable;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void onWritePossible() {
+    drain();
+  }
+
+  /** Serializes access to the output stream between container and client threads. */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      if (!result.isDone()) {
+        try {
+          drainOnce();
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void drainOnce() throws IOException {
+    if (error != null) {
+      fail(error);
+      return;
+    }
+    Flow.Subscription s = subscription;
+    if (s == null) {
+      return;
+    }
+    // isReady() returning false means the container will call onWritePossible later
+    ByteBuffer item;
+    while ((item = queue.peek()) != null) {
+      if (!out.isReady()) {
+        return;
+      }
+      write(item);
+      queue.poll();
+      needsFlush = true;
+    }
+    if (needsFlush) {
+      // Flush what upstream has delivered before waiting for more -- needed for SSE
+      if (!out.isReady()) {
+        return;
+      }
+      out.flush();
+      needsFlush = false;
+    }
+    if (upstreamDone) {
+      if (out.isReady()) {
+        result.complete(null);
+      }
+    } else if (!requested) {
+      requested = true;
+      s.request(1);
+    }
+  }
+
+  private void write(ByteBuffer item) throws IOException {
+    if (item.hasArray()) {
+      out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+      return;
+    }
+    if (copyBuffer == null || copyBuffer.length < item.remaining()) {
+      copyBuffer = new byte[item.remaining()];
+    }
+    int len = item.remaining();
+    item.duplicate().get(copyBuffer, 0, len);
+    out.write(copyBuffer, 0, len);//a single write; in non-blocking mode the container takes it all
+  }
+
+  private void fail(Throwable t) {
+    Flow.Subscription s = subscription;
+    if (s != null) {
+      s.cancel();
+    }
+    result.completeExceptionally(t);
+  }
+}
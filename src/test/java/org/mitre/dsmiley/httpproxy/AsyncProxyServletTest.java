@@ -0,0 +1,310 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class AsyncProxyServletTest {
+  @Parameters
+  public static List<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+      {false},
+      {true}
+    });
+  }
+
+  private Tomcat tomcat;
+  private Context ctx;
+  private int serverPort;
+  private final boolean nonBlockingIO;
+
+  public AsyncProxyServletTest(boolean nonBlockingIO) {
+    this.nonBlockingIO = nonBlockingIO;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  protected Wrapper addProxyServlet(String targetPath) {
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", ProxyServlet.class.getName());
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.addInitParameter(ProxyServlet.P_LOG, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_ASYNC, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_NONBLOCKINGIO, Boolean.toString(nonBlockingIO));
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d%s", serverPort, targetPath));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+    return proxyWrapper;
+  }
+
+  @Test
+  public void testGetAndPost() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp)
+          throws ServletException, IOException {
+        resp.setContentType("text/plain; charset=utf-8");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        req.getInputStream().transferTo(body);
+        resp.getWriter().print(req.getMethod() + " " + req.getRequestURI() + "?" + req.getQueryString()
+            + " " + body.toString(StandardCharsets.UTF_8));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend");
+
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/a/b?q=v", serverPort));
+      try (CloseableHttpResponse response = client.execute(get)) {
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("GET /backend/a/b?q=v ", EntityUtils.toString(response.getEntity()));
+      }
+
+      HttpPost post = new HttpPost(String.format("http://localhost:%d/proxy/c", serverPort));
+      post.setEntity(new ByteArrayEntity("posted body".getBytes(StandardCharsets.UTF_8)));
+      try (CloseableHttpResponse response = client.execute(post)) {
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("POST /backend/c?null posted body", EntityUtils.toString(response.getEntity()));
+      }
+    }
+  }
+
+  @Test
+  public void testBodyIsNotRewritten() throws Exception {
+    final String target = String.format("http://localhost:%d/backend", serverPort);
+    StringBuilder html = new StringBuilder();
+    while (html.length() < 32 * 1024) {//more than the container buffers, so it can't set the length itself
+      html.append("<a href=\"").append(target).append("/page\">page</a>\n");
+    }
+    final byte[] body = html.toString().getBytes(StandardCharsets.UTF_8);
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/html; charset=utf-8");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend").addInitParameter(ProxyServlet.P_REWRITEBODY, "true");
+
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/index.html", serverPort));
+      try (CloseableHttpResponse response = client.execute(get)) {
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        // Not applied in async mode, so the target's Content-Length is kept
+        assertEquals(String.valueOf(body.length), response.getFirstHeader("Content-Length").getValue());
+        assertArrayEquals(body, EntityUtils.toByteArray(response.getEntity()));
+      }
+    }
+  }
+
+  @Test
+  public void testLargeBodies() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        // echo it back, chunked
+        req.getInputStream().transferTo(resp.getOutputStream());
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend");
+
+    byte[] data = new byte[5 * 1024 * 1024 + 7];
+    new Random(42).nextBytes(data);
+    HttpPost post = new HttpPost(String.format("http://localhost:%d/proxy/echo", serverPort));
+    post.setEntity(new ByteArrayEntity(data));
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(post)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertArrayEquals(data, EntityUtils.toByteArray(response.getEntity()));
+    }
+  }
+
+  @Test
+  public void testStreamedResponse() throws Exception {
+    final CountDownLatch guardForSecondRead = new CountDownLatch(1);
+    final byte[] data1 = "event: message\ndata: Dummy Data1\n\n".getBytes(StandardCharsets.UTF_8);
+    final byte[] data2 = "event: message\ndata: Dummy Data2\n\n".getBytes(StandardCharsets.UTF_8);
+
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/event-stream");
+        OutputStream os = resp.getOutputStream();
+        os.write(data1);
+        os.flush();
+        try {
+          if (guardForSecondRead.await(10, TimeUnit.SECONDS)) {
+            os.write(data2);
+            os.flush();
+          }
+        } catch (InterruptedException ex) {
+          throw new IOException(ex);
+        }
+      }
+    });
+    ctx.addServletMappingDecoded("/chat/*", "backend");
+    addProxyServlet("/chat");
+
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(get);
+         InputStream is = response.getEntity().getContent()) {
+      assertArrayEquals(data1, readBlock(is));
+      guardForSecondRead.countDown();
+      assertArrayEquals(data2, readBlock(is));
+    }
+  }
+
+  @Test
+  public void testNotModifiedAndHeaders() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        resp.setHeader("ETag", "\"abc\"");
+        resp.setHeader("Location", String.format("http://localhost:%d/backend/moved", serverPort));
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend");
+
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/x", serverPort));
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(304, response.getStatusLine().getStatusCode());
+      assertEquals("\"abc\"", response.getFirstHeader("ETag").getValue());
+      // Location rewriting hook applies as in the blocking mode
+      assertEquals(String.format("http://localhost:%d/proxy/moved", serverPort),
+          response.getFirstHeader("Location").getValue());
+    }
+  }
+
+  @Test
+  public void testBrowserHeaders() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getWriter().print(req.getHeader("Origin") + " " + req.getHeader("Referer"));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend");
+
+    // Java 11's client refuses to set these; the request goes through without them there
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/x", serverPort));
+    get.setHeader("Origin", "http://example.com");
+    get.setHeader("Referer", "http://example.com/page");
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      String body = EntityUtils.toString(response.getEntity());
+      if (Runtime.version().feature() >= 12) {
+        assertEquals("http://example.com http://example.com/page", body);
+      }
+    }
+  }
+
+  @Test
+  public void testUnreachableTarget() throws Exception {
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", ProxyServlet.class.getName());
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.addInitParameter(ProxyServlet.P_ASYNC, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_NONBLOCKINGIO, Boolean.toString(nonBlockingIO));
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI, "http://localhost:1/nothing");
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/x", serverPort));
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(HttpServletResponse.SC_BAD_GATEWAY, response.getStatusLine().getStatusCode());
+    }
+  }
+
+  @Test
+  public void testFallsBackWhenAsyncUnsupported() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getWriter().print("sync");
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    addProxyServlet("/backend").setAsyncSupported(false);
+
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/x", serverPort));
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("sync", EntityUtils.toString(response.getEntity()));
+    }
+  }
+
+  private static byte[] readBlock(InputStream is) throws IOException {
+    byte[] buffer = new byte[10 * 1024];
+    int read = is.read(buffer);
+    return Arrays.copyOfRange(buffer, 0, read);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+public class BodyUrlRewriterTest {
+
+  private static final String TARGET = "http://backend:8080/app";
+  private static final String PROXY = "https://proxy/p";
+
+  /** Rewrites {@code in} split in chunks at {@code splits}. */
+  private static String rewrite(String in, boolean direct, int... splits) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BodyUrlRewriter.Rewriting rewriting = new BodyUrlRewriter(TARGET).open(PROXY, data -> {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      out.write(bytes);
+    });
+    byte[] bytes = in.getBytes(StandardCharsets.UTF_8);
+    int start = 0;
+    for (int i = 0; i <= splits.length; i++) {
+      int end = i < splits.length ? splits[i] : bytes.length;
+      ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(end - start) : ByteBuffer.allocate(end - start);
+      chunk.put(bytes, start, end - start).flip();
+      rewriting.write(chunk);
+      assertEquals(0, chunk.remaining());
+      start = end;
+    }
+    rewriting.finish();
+    return out.toString(StandardCharsets.UTF_8.name());
+  }
+
+  private static void assertRewrites(String expected, String in) throws IOException {
+    assertEquals(expected, rewrite(in, false));
+    assertEquals(expected, rewrite(in, true));
+    int length = in.getBytes(StandardCharsets.UTF_8).length;
+    for (int split = 0; split <= length; split++) {
+      assertEquals("split at " + split, expected, rewrite(in, false, split));
+    }
+    int[] everyByte = new int[length];
+    for (int i = 0; i < length; i++) {
+      everyByte[i] = i;
+    }
+    assertEquals(expected, rewrite(in, true, everyByte));
+  }
+
+  @Test
+  public void testNothingToRewrite() throws IOException {
+    assertRewrites("", "");
+    assertRewrites("<p>héllo http://backend:8080/ap</p>", "<p>héllo http://backend:8080/ap</p>");
+    assertRewrites("http://backend:8080/a", "http://backend:8080/a");//held back until the end
+  }
+
+  @Test
+  public void testRewrites() throws IOException {
+    assertRewrites("<a href=\"https://proxy/p/x?y\">", "<a href=\"http://backend:8080/app/x?y\">");
+    assertRewrites("https://proxy/p", TARGET);
+    assertRewrites("url(https://proxy/p/a.png) url(https://proxy/p/b.png)",
+        "url(http://backend:8080/app/a.png) url(http://backend:8080/app/b.png)");
+    assertRewrites("https://proxy/phttps://proxy/p", TARGET + TARGET);
+  }
+
+  @Test
+  public void testPartialMatchesRestart() throws IOException {
+    // a mismatch in the middle of a possible match may start another one
+    assertRewrites("http://https://proxy/p", "http://" + TARGET);
+    assertRewrites("http://backend:8080/aphttps://proxy/p!", "http://backend:8080/ap" + TARGET + "!");
+    assertRewrites("hhttps://proxy/p", "h" + TARGET);
+  }
+
+  @Test
+  public void testJsonEscaped() throws IOException {
+    assertRewrites("{\"next\":\"https:\\/\\/proxy\\/p\\/page2\"}",
+        "{\"next\":\"http:\\/\\/backend:8080\\/app\\/page2\"}");
+  }
+
+  @Test
+  public void testProxied() throws Exception {
+    Tomcat tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    Context ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    int port = tomcat.getConnector().getLocalPort();
+    String targetUri = String.format("http://localhost:%d/backend", port);
+    try {
+      Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+          byte[] body = ("<a href=\"" + targetUri + "/x\">x</a>").getBytes(StandardCharsets.UTF_8);
+          resp.setContentType(req.getPathInfo().endsWith(".png") ? "image/png" : "text/html; charset=UTF-8");
+          if (req.getPathInfo().startsWith("/gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+              gzip.write(body);
+            }
+            body = gzipped.toByteArray();
+            resp.setHeader("Content-Encoding", "gzip");
+          }
+          resp.setContentLength(body.length);
+          resp.getOutputStream().write(body);
+        }
+      });
+      ctx.addServletMappingDecoded("/backend/*", "backend");
+      for (String compression : new String[] {"false", "true"}) {
+        Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy" + compression, new ProxyServlet());
+        proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI, targetUri);
+        proxyWrapper.addInitParameter(ProxyServlet.P_REWRITEBODY, "true");
+        proxyWrapper.addInitParameter(ProxyServlet.P_HANDLECOMPRESSION, compression);
+        ctx.addServletMappingDecoded("/proxy" + compression + "/*", "proxy" + compression);
+      }
+
+      String proxyUri = String.format("http://localhost:%d/proxyfalse", port);
+      String expected = "<a href=\"" + proxyUri + "/x\">x</a>";
+      try (CloseableHttpClient client = HttpClientBuilder.create().disableContentCompression().build()) {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(proxyUri + "/page"))) {
+          assertEquals(expected, EntityUtils.toString(response.getEntity()));
+          // not the target's; the container may set its own once the body fits in its buffer
+          Header contentLength = response.getFirstHeader("Content-Length");
+          assertTrue(contentLength == null || contentLength.getValue().equals(String.valueOf(expected.length())));
+        }
+        try (CloseableHttpResponse response = client.execute(new HttpGet(proxyUri + "/image.png"))) {
+          assertEquals("<a href=\"" + targetUri + "/x\">x</a>", EntityUtils.toString(response.getEntity()));
+        }
+        // left alone when compressed, unless the servlet handles compression
+        try (CloseableHttpResponse response = client.execute(new HttpGet(proxyUri + "/gzip"))) {
+          assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+        }
+        String decodingProxyUri = String.format("http://localhost:%d/proxytrue", port);
+        try (CloseableHttpResponse response = client.execute(new HttpGet(decodingProxyUri + "/gzip"))) {
+          assertNull(response.getFirstHeader("Content-Encoding"));
+          assertEquals("<a href=\"" + decodingProxyUri + "/x\">x</a>", EntityUtils.toString(response.getEntity()));
+        }
+      }
+    } finally {
+      tomcat.stop();
+      tomcat.destroy();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+  private static final int[] SIZES = {1024, 8192};
+
+  @Test
+  public void testSizeClasses() {
+    BufferPool pool = BufferPool.none(SIZES);
+    assertEquals(1024, pool.acquire(10).capacity());
+    assertEquals(1024, pool.acquire(1024).capacity());
+    assertEquals(8192, pool.acquire(1025).capacity());
+    assertEquals(8192, pool.acquire(1_000_000).capacity());
+    assertEquals(8192, pool.acquire(-1).capacity());//unknown
+    assertEquals(0, pool.getHits());
+    assertEquals(5, pool.getMisses());
+  }
+
+  @Test
+  public void testUnknownSizeGetsModerateClass() {
+    BufferPool pool = BufferPool.none(BufferPool.defaultSizes());
+    assertEquals(16 * 1024, pool.acquire(-1).capacity());
+    assertEquals(64 * 1024, pool.acquire(1_000_000).capacity());
+    assertEquals(10 * 1024, BufferPool.none(BufferPool.unpooledSizes()).acquire(-1).capacity());
+  }
+
+  @Test
+  public void testDefaultSizesAreCopies() {
+    BufferPool.defaultSizes()[0] = 1;
+    BufferPool.unpooledSizes()[0] = 1;
+    assertEquals(4 * 1024, BufferPool.defaultSizes()[0]);
+    assertEquals(10 * 1024, BufferPool.unpooledSizes()[0]);
+  }
+
+  @Test
+  public void testThreadLocal() {
+    assertReused(BufferPool.threadLocal(SIZES));
+  }
+
+  @Test
+  public void testStriped() {
+    assertReused(BufferPool.striped(SIZES, 2));
+  }
+
+  private void assertReused(BufferPool pool) {
+    ByteBuffer buffer = pool.acquire(-1);
+    ByteBuffer other = pool.acquire(-1);
+    assertNotSame(buffer, other);
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    ByteBuffer reused = pool.acquire(-1);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());//cleared
+    pool.release(ByteBuffer.allocate(100));//not one of ours; ignored
+    assertEquals(1024, pool.acquire(1).capacity());
+    assertEquals(1, pool.getHits());
+    assertEquals(3, pool.getMisses());
+  }
+}
@@ -22,6 +22,7 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import jakarta.servlet.Filter;
@@ -44,6 +45,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.apache.tomcat.util.descriptor.web.FilterDef;
 import org.apache.tomcat.util.descriptor.web.FilterMap;
 import org.junit.After;
@@ -253,6 +255,33 @@ public class ChunkedTransferTest {
     assertTrue(guardForEnd.await(10, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void testLargeBodyThroughPooledBuffers() throws Exception {
+    final byte[] data = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(data);
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", new ProxyServlet());
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI, String.format("http://localhost:%d/chat/", serverPort));
+    proxyWrapper.addInitParameter(ProxyServlet.P_HANDLECOMPRESSION, Boolean.toString(handleCompressionApacheClient));
+    proxyWrapper.addInitParameter(ProxyServlet.P_BUFFERPOOL, "threadLocal");
+    ctx.addServletMappingDecoded("/chatProxied/*", "proxy");
+
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/octet-stream");
+        resp.getOutputStream().write(data);
+      }
+    });
+    ctx.addServletMappingDecoded("/chat/*", "backend");
+
+    HttpGet url = new HttpGet(String.format("http://localhost:%d/chatProxied/test", serverPort));
+    try (CloseableHttpClient chc = HttpClientBuilder.create().build();
+            CloseableHttpResponse chr = chc.execute(url)) {
+      assertArrayEquals(data, EntityUtils.toByteArray(chr.getEntity()));
+    }
+  }
+
   private static String toString(byte[] data) {
     return new String(data, StandardCharsets.UTF_8);
   }
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Headers named in a message's Connection header are hop-by-hop (RFC 7230 6.1), so the proxy
+ * mustn't forward them in either direction.
+ */
+public class ConnectionHeaderTest {
+
+  private Tomcat tomcat;
+  private int serverPort;
+  private CloseableHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    Context ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+
+    // Echoes the X- request headers, and responds with X-Hop named in Connection
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setHeader("X-Hop", "from-server");
+        resp.setHeader("X-Other", "from-server");
+        resp.setHeader("Connection", "X-Hop");
+        resp.setHeader("X-Accept-Encoding", String.valueOf(req.getHeader("Accept-Encoding")));
+        resp.getOutputStream().write(("X-Hop=" + req.getHeader("X-Hop") + " X-Other=" + req.getHeader("X-Other"))
+            .getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", new ProxyServlet());
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    client = HttpClientBuilder.create().build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  @Test
+  public void testConnectionOptionsAreNotForwarded() throws Exception {
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+    get.setHeader("X-Hop", "from-client");
+    get.setHeader("X-Other", "from-client");
+    get.setHeader("Connection", "keep-alive, x-hop");
+    try (CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("X-Hop=null X-Other=from-client", EntityUtils.toString(response.getEntity()));
+      assertNull(response.getFirstHeader("X-Hop"));
+      assertEquals("from-server", response.getFirstHeader("X-Other").getValue());
+    }
+  }
+
+  @Test
+  public void testAddedHopByHopHeadersAreNotForwarded() throws Exception {
+    Header added = new BasicHeader("X-Other", null);
+    ProxyServlet.hopByHopHeaders.addHeader(added);
+    try {
+      HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+      get.setHeader("X-Other", "from-client");
+      try (CloseableHttpResponse response = client.execute(get)) {
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("X-Hop=null X-Other=null", EntityUtils.toString(response.getEntity()));
+        assertNull(response.getFirstHeader("X-Other"));
+      }
+    } finally {
+      ProxyServlet.hopByHopHeaders.removeHeader(added);
+    }
+  }
+
+  @Test
+  public void testConnectionOptionsCoverSpecialHeaders() throws Exception {
+    HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+    get.setHeader("Accept-Encoding", "identity");
+    get.setHeader("Connection", "Accept-Encoding");
+    try (CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertEquals("null", response.getFirstHeader("X-Accept-Encoding").getValue());
+      EntityUtils.consume(response.getEntity());
+    }
+  }
+
+  @Test
+  public void testParse() {
+    ConnectionOptions options = ConnectionOptions.parse(Collections.enumeration(Arrays.asList(
+        "keep-alive, X-Foo ,\tx-bar", "close,,X-Baz, Upgrade, closer")));
+    assertEquals("X-Foo, x-bar, X-Baz, closer", options.toString());
+    assertTrue(options.contains("x-foo"));
+    assertTrue(options.contains("X-BAR"));
+    assertTrue(options.contains("X-Baz"));
+    assertFalse(options.contains("X-Fo"));
+    assertFalse(options.contains("close"));
+    assertFalse(options.contains("Upgrade"));//hop-by-hop anyway
+  }
+
+  @Test
+  public void testParseNothing() {
+    assertSame(ConnectionOptions.NONE, ConnectionOptions.parse(new Header[0]));
+    assertSame(ConnectionOptions.NONE, ConnectionOptions.parse(new Header[] {new BasicHeader("Connection", "close")}));
+    assertSame(ConnectionOptions.NONE, ConnectionOptions.parse(Collections.emptyEnumeration()));
+  }
+}
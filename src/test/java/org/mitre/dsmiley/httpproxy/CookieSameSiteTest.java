@@ -13,14 +13,18 @@
  */
 package org.mitre.dsmiley.httpproxy;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.HttpCookie;
+import java.nio.charset.StandardCharsets;
 import org.apache.catalina.Context;
 import org.apache.catalina.Wrapper;
 import org.apache.catalina.startup.Tomcat;
@@ -29,6 +33,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -83,4 +88,89 @@ public class CookieSameSiteTest {
           setCookieHeader.getValue().contains("SameSite=Strict"));
     }
   }
+
+  private String proxySetCookie(ProxyServlet proxyServlet, String setCookie) throws Exception {
+    return proxySetCookies(proxyServlet, "Set-Cookie", setCookie)[0].getValue();
+  }
+
+  private Header[] proxySetCookies(ProxyServlet proxyServlet, String headerName, String setCookie)
+          throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        resp.addHeader(headerName, setCookie);
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend/", serverPort));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    HttpGet request = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+    try (CloseableHttpClient client = HttpClientBuilder.create().disableRedirectHandling().build();
+         CloseableHttpResponse response = client.execute(request)) {
+      return response.getHeaders("Set-Cookie");
+    }
+  }
+
+  @Test
+  public void testSetCookie2WithTwoCookies() throws Exception {
+    Header[] setCookies = proxySetCookies(new ProxyServlet(), "Set-Cookie2",
+        "a=1; Path=/x; Max-Age=60, b=2; Path=/y");
+    assertEquals(2, setCookies.length);
+    assertTrue(setCookies[0].getValue(), setCookies[0].getValue().startsWith("!Proxy!proxya=1;"));
+    assertTrue(setCookies[0].getValue(), setCookies[0].getValue().contains("Path=/proxy"));
+    assertTrue(setCookies[1].getValue(), setCookies[1].getValue().startsWith("!Proxy!proxyb=2;"));
+    assertTrue(setCookies[1].getValue(), setCookies[1].getValue().contains("Path=/proxy"));
+  }
+
+  @Test
+  public void testUnknownAttributesArePreserved() throws Exception {
+    assertEquals("!Proxy!proxyid=a=b; SameSite=None; Partitioned; Priority=High; Path=/proxy",
+        proxySetCookie(new ProxyServlet(),
+            "id=a=b; Domain=example.com; SameSite=None; Secure; Partitioned; Path=/x; Priority=High"));
+  }
+
+  @Test
+  public void testCustomizedServletCookies() throws Exception {
+    @SuppressWarnings("serial")
+    ProxyServlet proxyServlet = new ProxyServlet() {
+      @Override
+      protected Cookie createProxyCookie(HttpServletRequest servletRequest, HttpCookie cookie) {
+        Cookie servletCookie = super.createProxyCookie(servletRequest, cookie);
+        servletCookie.setAttribute("X-Custom", "1");
+        return servletCookie;
+      }
+    };
+    String setCookie = proxySetCookie(proxyServlet, "id=1; Path=/x; SameSite=Lax");
+    assertTrue(setCookie, setCookie.startsWith("!Proxy!proxyid=1"));
+    assertTrue(setCookie, setCookie.contains("X-Custom=1"));
+    assertTrue(setCookie, setCookie.contains("SameSite=Lax"));
+  }
+
+  @Test
+  public void testProxyCookiesAreSentWithoutPrefix() throws Exception {
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.getOutputStream().write(req.getHeader("Cookie").getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", ProxyServlet.class.getName());
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend/", serverPort));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    HttpGet request = new HttpGet(String.format("http://localhost:%d/proxy/test", serverPort));
+    request.setHeader("Cookie", "LOCAL=1;  !Proxy!proxyA = 2 ;!Proxy!proxyTOKEN=YWJjZA==,NOVALUE;;"
+        + "!Proxy!proxyEMPTY=; LOCAL2=!Proxy!proxyX; !Proxy!otherB=3");
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(request)) {
+      assertEquals("A=2; TOKEN=YWJjZA==; EMPTY=", EntityUtils.toString(response.getEntity()));
+    }
+  }
 }
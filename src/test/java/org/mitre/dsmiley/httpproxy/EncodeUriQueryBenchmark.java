@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link ProxyServlet#encodeUriQuery(CharSequence, boolean)} with its former
+ * {@link Formatter} based implementation.  Run it with:
+ * <pre>
+ *   mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *       "-Dexec.args=-cp %classpath org.openjdk.jmh.Main EncodeUriQueryBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeUriQueryBenchmark {
+
+  @Param({
+      "/api/v1/users/12345/orders",//nothing to escape
+      "/files/My Documents/report 2024 (final).pdf",
+      "q=hello+world&page=2&sort=desc&fields=id,name,email",
+      "filter={\"status\":[\"open\",\"closed\"]}&q=a|b^c",
+      "name=Zoë&city=São Paulo&note=50%25 off"
+  })
+  public String input;
+
+  private final ProxyServlet servlet = new ProxyServlet();
+
+  @Benchmark
+  public CharSequence tableDriven() {
+    return servlet.encodeUriQuery(input, false);
+  }
+
+  @Benchmark
+  public CharSequence formatter() {
+    return formatterEncodeUriQuery(input, false);
+  }
+
+  /** The implementation before it was table driven; it mis-escapes non-ASCII beyond U+00FF. */
+  static CharSequence formatterEncodeUriQuery(CharSequence in, boolean encodePercent) {
+    StringBuilder outBuf = null;
+    Formatter formatter = null;
+    for(int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      boolean escape = true;
+      if (c < 128) {
+        if (ProxyServlet.asciiQueryChars.get(c) && !(encodePercent && c == '%')) {
+          escape = false;
+        }
+      } else if (!Character.isISOControl(c) && !Character.isSpaceChar(c)) {//not-ascii
+        escape = false;
+      }
+      if (!escape) {
+        if (outBuf != null)
+          outBuf.append(c);
+      } else {
+        //escape
+        if (outBuf == null) {
+          outBuf = new StringBuilder(in.length() + 5*3);
+          outBuf.append(in,0,i);
+          formatter = new Formatter(outBuf);
+        }
+        //leading %, 0 padded, width 2, capital hex
+        formatter.format("%%%02X",(int)c);
+      }
+    }
+    return outBuf != null ? outBuf : in;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(EncodeUriQueryBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class EncodeUriQueryTest {
+
+  private final ProxyServlet servlet = new ProxyServlet();
+
+  private String encode(String in, boolean encodePercent) {
+    return servlet.encodeUriQuery(in, encodePercent).toString();
+  }
+
+  @Test
+  public void testNothingToEscape() {
+    String in = "/a/b-c_d.e~f!g'h(i)j*k,l;m:n$o&p+q=r/s@t%41";
+    assertSame(in, servlet.encodeUriQuery(in, false));
+  }
+
+  @Test
+  public void testSameAsFormatterForAscii() {
+    StringBuilder all = new StringBuilder();
+    for (char c = 0; c < 128; c++) {
+      all.append(c);
+    }
+    for (boolean encodePercent : new boolean[] {false, true}) {
+      assertEquals(EncodeUriQueryBenchmark.formatterEncodeUriQuery(all, encodePercent).toString(),
+          encode(all.toString(), encodePercent));
+    }
+  }
+
+  @Test
+  public void testEscapes() {
+    assertEquals("a%20b%7Bc%7D%22%3F%5B%5D", encode("a b{c}\"?[]", false));
+    assertEquals("50%25%20off", encode("50% off", true));
+    assertEquals("50%%20off", encode("50% off", false));
+  }
+
+  @Test
+  public void testNonAscii() {
+    assertEquals("Zoë", encode("Zoë", false));//letters aren't escaped
+    assertEquals("São%C2%A0Paulo", encode("São Paulo", false));
+    assertEquals("em%E2%80%83space", encode("em space", false));
+    assertEquals("😀", encode("😀", false));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class FlushPolicyTest {
+
+  private final AtomicInteger flushes = new AtomicInteger();
+  private final CountDownLatch flushed = new CountDownLatch(1);
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+    @Override
+    public void flush() {
+      flushes.incrementAndGet();
+      flushed.countDown();
+    }
+  };
+
+  private FlushPolicy.Session open(FlushPolicy policy, InputStream in) {
+    return policy.open(Channels.newChannel(out), out, in);
+  }
+
+  private static ByteBuffer bytes(String s) {
+    return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testWhenIdle() throws IOException {
+    InputStream in = new ByteArrayInputStream(new byte[1]);
+    try (FlushPolicy.Session session = open(FlushPolicy.parse("whenIdle", null), in)) {
+      session.write(bytes("a"));
+      assertEquals(0, flushes.get());
+      in.read();
+      session.write(bytes("b"));
+      assertEquals(1, flushes.get());
+    }
+    assertEquals("ab", out.toString());
+  }
+
+  @Test
+  public void testBytes() throws IOException {
+    try (FlushPolicy.Session session = open(FlushPolicy.parse("bytes:3", null), null)) {
+      session.write(bytes("ab"));
+      assertEquals(0, flushes.get());
+      session.write(bytes("cd"));
+      assertEquals(1, flushes.get());
+      session.write(bytes("e"));
+      assertEquals(1, flushes.get());
+    }
+  }
+
+  @Test
+  public void testSse() throws IOException {
+    try (FlushPolicy.Session session = open(FlushPolicy.parse("sse", null), null)) {
+      session.write(bytes("data: one\n"));
+      assertEquals(0, flushes.get());
+      session.write(bytes("\ndata: tw"));
+      assertEquals(1, flushes.get());
+      session.write(bytes("o\r\n"));
+      assertEquals(1, flushes.get());
+      session.write(bytes("\r\n"));
+      assertEquals(2, flushes.get());
+    }
+  }
+
+  @Test
+  public void testTimed() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try (FlushPolicy.Session session = open(FlushPolicy.parse("time:50,4", scheduler), null)) {
+      session.write(bytes("abcd"));
+      assertEquals(1, flushes.get());//threshold
+      session.write(bytes("e"));
+      assertEquals(1, flushes.get());
+      // flushed while the writer is idle, e.g. blocked reading from upstream
+      assertTrue(waitForFlushes(2));
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private boolean waitForFlushes(int n) throws InterruptedException {
+    for (int i = 0; i < 100 && flushes.get() < n; i++) {
+      TimeUnit.MILLISECONDS.sleep(20);
+    }
+    return flushes.get() == n;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnrecognized() {
+    FlushPolicy.parse("bytes", null);
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.http.Header;
+import org.junit.Test;
+
+public class HeaderKindTest {
+
+  @Test
+  public void testHopByHopHeadersMatchTheHeaderGroup() {
+    for (Header header : ProxyServlet.hopByHopHeaders.getAllHeaders()) {
+      assertEquals(HeaderKind.HOP_BY_HOP, HeaderKind.of(header.getName()));
+    }
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    assertEquals(HeaderKind.CONTENT_LENGTH, HeaderKind.of("content-length"));
+    assertEquals(HeaderKind.ACCEPT_ENCODING, HeaderKind.of("ACCEPT-ENCODING"));
+    assertEquals(HeaderKind.HOST, HeaderKind.of("hOsT"));
+    assertEquals(HeaderKind.COOKIE, HeaderKind.of("Cookie"));
+    assertEquals(HeaderKind.SET_COOKIE, HeaderKind.of("set-cookie"));
+    assertEquals(HeaderKind.SET_COOKIE2, HeaderKind.of("Set-Cookie2"));
+    assertEquals(HeaderKind.LOCATION, HeaderKind.of("location"));
+    assertEquals(HeaderKind.HOP_BY_HOP, HeaderKind.of("te"));
+  }
+
+  @Test
+  public void testOther() {
+    for (String name : new String[] {"", "X", "Hosts", "Cookies", "Content-Type", "Te", "Tx",
+        "Set-Cookie3", "Transfer-Encodings", "Keep_Alive", "Locationé"}) {
+      assertEquals(name, name.equals("Te") ? HeaderKind.HOP_BY_HOP : HeaderKind.OTHER, HeaderKind.of(name));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.coyote.http2.Http2Protocol;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Proxies to a backend speaking h2c, which the proxy's client must upgrade to.
+ */
+@RunWith(Parameterized.class)
+public class Http2UpstreamTest {
+  @Parameters
+  public static List<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+      {false},
+      {true}
+    });
+  }
+
+  private Tomcat tomcat;
+  private Context ctx;
+  private int serverPort;
+  private final boolean async;
+  private final Set<String> backendProtocols = ConcurrentHashMap.newKeySet();
+
+  public Http2UpstreamTest(boolean async) {
+    this.async = async;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector().addUpgradeProtocol(new Http2Protocol());
+    ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", ProxyServlet.class.getName());
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.addInitParameter(ProxyServlet.P_HTTP2, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_ASYNC, Boolean.toString(async));
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend/", serverPort));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        backendProtocols.add(req.getProtocol());
+        resp.setContentType("application/octet-stream");
+        req.getInputStream().transferTo(resp.getOutputStream());
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  @Test
+  public void testRequestsUseHttp2() throws Exception {
+    byte[] data = new byte[200 * 1024];
+    new Random(7).nextBytes(data);
+    try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+      for (int i = 0; i < 3; i++) {
+        HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy/get", serverPort));
+        try (CloseableHttpResponse response = client.execute(get)) {
+          assertEquals(200, response.getStatusLine().getStatusCode());
+          EntityUtils.consume(response.getEntity());
+        }
+        HttpPost post = new HttpPost(String.format("http://localhost:%d/proxy/post", serverPort));
+        post.setEntity(new ByteArrayEntity(data));
+        try (CloseableHttpResponse response = client.execute(post)) {
+          assertEquals(200, response.getStatusLine().getStatusCode());
+          assertArrayEquals(data, EntityUtils.toByteArray(response.getEntity()));
+        }
+      }
+    }
+    assertTrue("backend protocols: " + backendProtocols, backendProtocols.contains("HTTP/2.0"));
+  }
+}
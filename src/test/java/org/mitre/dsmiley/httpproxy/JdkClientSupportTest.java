@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.net.http.HttpHeaders;
+import java.util.Optional;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Test;
+
+public class JdkClientSupportTest {
+
+  @Test
+  public void testRefusedHeadersAreSkipped() {
+    BasicHttpRequest proxyRequest = new BasicHttpRequest("GET", "http://localhost:8080/x");
+    proxyRequest.addHeader("Host", "localhost:8080");//restricted in every JDK
+    proxyRequest.addHeader("Bad Name", "x");//not a token
+    proxyRequest.addHeader("Origin", "http://example.com");//restricted in Java 11
+    proxyRequest.addHeader("Referer", "http://example.com/page");
+    proxyRequest.addHeader("Accept", "text/html");
+
+    HttpHeaders headers = JdkClientSupport.toJdkRequest(proxyRequest, null).headers();
+    assertFalse(headers.firstValue("Host").isPresent());
+    assertFalse(headers.firstValue("Bad Name").isPresent());
+    assertEquals(Optional.of("text/html"), headers.firstValue("Accept"));
+    if (Runtime.version().feature() >= 12) {
+      assertEquals(Optional.of("http://example.com"), headers.firstValue("Origin"));
+      assertEquals(Optional.of("http://example.com/page"), headers.firstValue("Referer"));
+    }
+  }
+}
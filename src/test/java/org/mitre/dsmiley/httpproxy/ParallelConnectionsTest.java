@@ -24,12 +24,14 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -37,9 +39,13 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.catalina.Context;
 import org.apache.catalina.Wrapper;
 import org.apache.catalina.startup.Tomcat;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
 import org.junit.After;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -146,4 +152,183 @@ public class ParallelConnectionsTest {
       assertEquals("Works", f.get());
     }
   }
+
+  @Test
+  public void testRouteConnectionLimit() throws Exception {
+    int routeConnections = 2;
+    int requests = 6;
+
+    ProxyServlet proxyServlet = new ProxyServlet();
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, "20");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONSPERROUTE, "10");
+    proxyWrapper.addInitParameter(ProxyServlet.P_ROUTEMAXCONNECTIONS,
+        String.format("otherhost=5,localhost:%d=%d", serverPort, routeConnections));
+    proxyWrapper.addInitParameter(
+        ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/sampleBackend/", serverPort));
+    ctx.addServletMappingDecoded("/sampleBackendProxied/*", "proxy");
+
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    Tomcat.addServlet(
+        ctx, "backend", new HttpServlet() {
+          @Override
+          protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+              throws IOException {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException ex) {
+              throw new IOException(ex);
+            } finally {
+              inFlight.decrementAndGet();
+            }
+            resp.getWriter().write("Works");
+          }
+        });
+    ctx.addServletMappingDecoded("/sampleBackend/*", "backend");
+
+    URL url = new URL(String.format("http://localhost:%d/sampleBackendProxied/test", serverPort));
+    ExecutorService es = Executors.newFixedThreadPool(requests);
+    List<Future<String>> result = new ArrayList<>(requests);
+    for (int i = 0; i < requests; i++) {
+      result.add(es.submit(() -> {
+        try (InputStream is = url.openStream()) {
+          return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+      }));
+    }
+    for (Future<String> f : result) {
+      assertEquals("Works", f.get());
+    }
+    es.shutdown();
+
+    assertTrue("max concurrent requests: " + maxInFlight, maxInFlight.get() <= routeConnections);
+    Map<HttpRoute, PoolStats> poolStats = proxyServlet.getPoolStats();
+    assertEquals(1, poolStats.size());
+    PoolStats routeStats = poolStats.values().iterator().next();
+    assertEquals(routeConnections, routeStats.getMax());
+    assertEquals(0, routeStats.getLeased());
+    assertEquals(routeConnections, routeStats.getAvailable());
+    assertEquals(20, proxyServlet.getTotalPoolStats().getMax());
+  }
+
+  @Test
+  public void testIdleConnectionEviction() throws Exception {
+    ProxyServlet proxyServlet = new ProxyServlet();
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "evictingProxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_IDLECONNECTIONTIMEOUT, "200");
+    proxyWrapper.addInitParameter(ProxyServlet.P_EVICTIONINTERVAL, "50");
+    proxyWrapper.addInitParameter(ProxyServlet.P_VALIDATEAFTERINACTIVITY, "100");
+    proxyWrapper.addInitParameter(
+        ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/sampleBackend/", serverPort));
+    proxyWrapper.setLoadOnStartup(1);
+    ctx.addServletMappingDecoded("/sampleBackendProxied/*", "evictingProxy");
+    Tomcat.addServlet(
+        ctx, "backend", new HttpServlet() {
+          @Override
+          protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            resp.getWriter().write("Works");
+          }
+        });
+    ctx.addServletMappingDecoded("/sampleBackend/*", "backend");
+
+    URL url = new URL(String.format("http://localhost:%d/sampleBackendProxied/test", serverPort));
+    try (InputStream is = url.openStream()) {
+      assertEquals("Works", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertEquals(1, proxyServlet.getTotalPoolStats().getAvailable());
+    assertTrue(isEvictorRunning());
+
+    for (int i = 0; i < 100 && proxyServlet.getTotalPoolStats().getAvailable() > 0; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, proxyServlet.getTotalPoolStats().getAvailable());
+
+    proxyWrapper.unload();//destroys the servlet
+    assertFalse(isEvictorRunning());
+  }
+
+  @Test
+  public void testConnectionPrewarming() throws Exception {
+    int prewarmConnections = 3;
+    AtomicInteger warmUpRequests = new AtomicInteger();
+    Tomcat.addServlet(
+        ctx, "backend", new HttpServlet() {
+          @Override
+          protected void doHead(HttpServletRequest req, HttpServletResponse resp) {
+            warmUpRequests.incrementAndGet();
+          }
+        });
+    ctx.addServletMappingDecoded("/sampleBackend/*", "backend");
+
+    ProxyServlet proxyServlet = new ProxyServlet();
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMCONNECTIONS, Integer.toString(prewarmConnections));
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMPATH, "/sampleBackend/health");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, "10");
+    proxyWrapper.addInitParameter(ProxyServlet.P_IDLECONNECTIONTIMEOUT, "300");
+    proxyWrapper.addInitParameter(ProxyServlet.P_EVICTIONINTERVAL, "50");
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMINTERVAL, "100");
+    proxyWrapper.addInitParameter(
+        ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/sampleBackend/", serverPort));
+    proxyWrapper.load();
+
+    assertEquals(prewarmConnections, proxyServlet.getTotalPoolStats().getAvailable());
+    assertEquals(prewarmConnections, warmUpRequests.get());
+
+    // idle connections are evicted, then replaced
+    for (int i = 0; i < 100 && warmUpRequests.get() < 2 * prewarmConnections; i++) {
+      Thread.sleep(20);
+    }
+    assertTrue("warm-up requests: " + warmUpRequests, warmUpRequests.get() >= 2 * prewarmConnections);
+    proxyWrapper.unload();
+  }
+
+  @Test
+  public void testConnectionPrewarmingBeyondRouteLimit() throws Exception {
+    Tomcat.addServlet(
+        ctx, "backend", new HttpServlet() {
+          @Override
+          protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            resp.getWriter().write("Works");
+          }
+        });
+    ctx.addServletMappingDecoded("/sampleBackend/*", "backend");
+
+    ProxyServlet proxyServlet = new ProxyServlet();
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMCONNECTIONS, "5");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONSPERROUTE, "2");
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMINTERVAL, "10");
+    proxyWrapper.addInitParameter(ProxyServlet.P_PREWARMTIMEOUT, "5000");
+    proxyWrapper.addInitParameter(ProxyServlet.P_CONNECTIONREQUESTTIMEOUT, "1000");
+    proxyWrapper.addInitParameter(
+        ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/sampleBackend/", serverPort));
+    ctx.addServletMappingDecoded("/sampleBackendProxied/*", "proxy");
+    long start = System.nanoTime();
+    proxyWrapper.load();
+    assertTrue("init took too long", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+    assertEquals(2, proxyServlet.getTotalPoolStats().getAvailable());
+
+    // the warmer keeps running meanwhile, and mustn't hold the connections requests need
+    URL url = new URL(String.format("http://localhost:%d/sampleBackendProxied/test", serverPort));
+    for (int i = 0; i < 20; i++) {
+      try (InputStream is = url.openStream()) {
+        assertEquals("Works", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      Thread.sleep(10);
+    }
+    assertEquals(2, proxyServlet.getTotalPoolStats().getAvailable());
+    proxyWrapper.unload();
+  }
+
+  private static boolean isEvictorRunning() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .anyMatch(t -> t.getName().equals("evictingProxy-connection-evictor") && t.isAlive());
+  }
 }
@@ -191,7 +191,34 @@ public class ProxyServletTest
     assertEquals("",rsp.getText());
     String gotLocation = rsp.getHeaderField(HttpHeaders.LOCATION);
     assertEquals(resultRedirect, gotLocation);
-    assertEquals("!Proxy!"+servletName+"JSESSIONID=1234;path="+servletPath,rsp.getHeaderField("Set-Cookie"));
+    assertEquals("!Proxy!"+servletName+"JSESSIONID=1234; Path="+servletPath,rsp.getHeaderField("Set-Cookie"));
+  }
+
+  @Test
+  public void testRewriteUrlHeaders() throws Exception {
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setHeader("Content-Location", targetBaseUri + "/a");
+        response.setHeader("Refresh", "5; URL='" + targetBaseUri + "/b?c=d'");
+        response.setHeader("Link", "<" + targetBaseUri + "/p2>; rel=\"next\", <http://elsewhere/x>; rel=\"help\", <"
+            + targetBaseUri + ">; rel=\"start\"");
+        super.handle(request, response, context);
+      }
+    });
+    WebResponse rsp = execAndAssert(makeGetMethodRequest(sourceBaseUri), "");
+    assertEquals(targetBaseUri + "/a", rsp.getHeaderField("Content-Location"));//not by default
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_REWRITEURLHEADERS, "true");
+    setUpServlet(servletProps);
+    sc = servletRunner.newClient();
+
+    rsp = execAndAssert(makeGetMethodRequest(sourceBaseUri), "");
+    assertEquals(sourceBaseUri + "/a", rsp.getHeaderField("Content-Location"));
+    assertEquals("5; URL='" + sourceBaseUri + "/b?c=d'", rsp.getHeaderField("Refresh"));
+    assertEquals("<" + sourceBaseUri + "/p2>; rel=\"next\", <http://elsewhere/x>; rel=\"help\", <"
+        + sourceBaseUri + ">; rel=\"start\"", rsp.getHeaderField("Link"));
   }
 
   @Test
@@ -316,8 +343,9 @@ public class ProxyServletTest
 
     GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri);
     WebResponse rsp = execAndAssert(req, "");
-    // note httpunit doesn't set all cookie fields, ignores max-agent, secure, etc.
-    assertEquals("!Proxy!" + servletName + "JSESSIONID=1234;path=" + servletPath, rsp.getHeaderField(HEADER));
+    // the domain is dropped and the path replaced
+    assertEquals("!Proxy!" + servletName + "JSESSIONID=1234; Expires=Wed, 13 Jan 2021 22:23:01 GMT; HttpOnly; Path="
+        + servletPath, rsp.getHeaderField(HEADER));
   }
 
   @Test
@@ -334,6 +362,7 @@ public class ProxyServletTest
     WebResponse rsp = execAndAssert(req, "");
     // note httpunit doesn't set all cookie fields, ignores max-agent, secure, etc.
     // also doesn't support more than one header of same name so I can't test this working on two cookies
+    // (see CookieSameSiteTest.testSetCookie2WithTwoCookies)
     assertEquals("!Proxy!" + servletName + "JSESSIONID=1234;path=" + servletPath, rsp.getHeaderField("Set-Cookie"));
   }
 
@@ -361,8 +390,8 @@ public class ProxyServletTest
 
     GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri);
     WebResponse rsp = execAndAssert(req, "");
-    // note httpunit doesn't set all cookie fields, ignores max-agent, secure, etc.
-    assertEquals("JSESSIONID=1234;path=" + servletPath, rsp.getHeaderField(HEADER));
+    assertEquals("JSESSIONID=1234; Expires=Wed, 13 Jan 2021 22:23:01 GMT; HttpOnly; Path=" + servletPath,
+        rsp.getHeaderField(HEADER));
   }
 
   @Test
@@ -377,8 +406,7 @@ public class ProxyServletTest
 
     GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri);
     WebResponse rsp = execAndAssert(req, "");
-    // note httpunit doesn't set all cookie fields, ignores max-agent, secure, etc.
-    assertEquals("!Proxy!" + servletName + "JSESSIONID=1234;path=" + servletPath, rsp.getHeaderField(HEADER));
+    assertEquals("!Proxy!" + servletName + "JSESSIONID=1234; HttpOnly; Path=" + servletPath, rsp.getHeaderField(HEADER));
   }
 
   @Test
@@ -427,8 +455,8 @@ public class ProxyServletTest
 
     GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri);
     WebResponse rsp = execAndAssert(req, "");
-    // note httpunit doesn't set all cookie fields, ignores max-agent, secure, etc.
-    assertEquals("JSESSIONID=1234;path=/proxy/path/that/we/want", rsp.getHeaderField(HEADER));
+    assertEquals("JSESSIONID=1234; Path=/proxy/path/that/we/want; Expires=Wed, 13 Jan 2021 22:23:01 GMT; HttpOnly",
+        rsp.getHeaderField(HEADER));
   }
 
   /**
@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends concurrent identical requests through a {@link ProxyServlet#P_COALESCE coalescing} proxy to
+ * a backend that holds its responses until all of them arrived at the proxy.
+ */
+public class RequestCoalescingTest {
+
+  private static final int CLIENTS = 8;
+
+  private Tomcat tomcat;
+  private Context ctx;
+  private int serverPort;
+  private final AtomicInteger proxyRequests = new AtomicInteger();
+  private final AtomicInteger backendRequests = new AtomicInteger();
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch firstChunkReceived = new CountDownLatch(1);
+  private final AtomicBoolean streamed = new AtomicBoolean();
+  private ExecutorService clients;
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+
+    // The path says what to respond with: /shared, /cookie, /large, /vary/<header> or /streamed
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int n = backendRequests.incrementAndGet();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        String path = req.getPathInfo();
+        if (path.equals("/cookie")) {
+          resp.addHeader("Set-Cookie", "session=" + n);
+        }
+        if (path.startsWith("/vary/")) {
+          resp.addHeader("Vary", path.substring("/vary/".length()));
+        }
+        resp.setContentType("text/plain");
+        if (path.equals("/streamed")) {
+          // like an event stream: the rest is sent once the client got the first chunk
+          resp.getOutputStream().write("first\n".getBytes(StandardCharsets.UTF_8));
+          resp.flushBuffer();
+          try {
+            streamed.set(firstChunkReceived.await(3, TimeUnit.SECONDS));
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          resp.getOutputStream().write("last\n".getBytes(StandardCharsets.UTF_8));
+          return;
+        }
+        String body = path + " #" + n;
+        if (path.equals("/large")) {
+          body += new String(new char[2000]).replace('\0', 'x');
+        }
+        resp.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+    clients = Executors.newFixedThreadPool(CLIENTS);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    release.countDown();
+    clients.shutdownNow();
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  private ProxyServlet startProxy(String... params) {
+    ProxyServlet proxyServlet = new ProxyServlet() {
+      @Override
+      protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+          throws ServletException, IOException {
+        proxyRequests.incrementAndGet();
+        super.service(servletRequest, servletResponse);
+      }
+    };
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.setLoadOnStartup(1);
+    proxyWrapper.addInitParameter(ProxyServlet.P_COALESCE, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_COALESCE_MAXBODYSIZE, "1000");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, Integer.toString(CLIENTS));
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    for (int i = 0; i < params.length; i += 2) {
+      proxyWrapper.addInitParameter(params[i], params[i + 1]);
+    }
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+    return proxyServlet;
+  }
+
+  /** Sends the requests concurrently, releasing the backend once all arrived at the proxy. */
+  private List<String> executeConcurrently(String path, String... languages) throws Exception {
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < CLIENTS; i++) {
+      String language = languages.length == 0 ? null : languages[i % languages.length];
+      futures.add(clients.submit(() -> {
+        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
+          HttpGet get = new HttpGet(String.format("http://localhost:%d/proxy%s", serverPort, path));
+          if (language != null) {
+            get.setHeader("Accept-Language", language);
+          }
+          try (CloseableHttpResponse response = client.execute(get)) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+          }
+        }
+      }));
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (proxyRequests.get() < CLIENTS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);//for them to get to the coalescer
+    release.countDown();
+    List<String> bodies = new ArrayList<>();
+    for (Future<String> future : futures) {
+      bodies.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return bodies;
+  }
+
+  @Test
+  public void testIdenticalRequestsAreCoalesced() throws Exception {
+    ProxyServlet proxyServlet = startProxy();
+    List<String> bodies = executeConcurrently("/shared");
+    for (String body : bodies) {
+      assertEquals("/shared #1", body);
+    }
+    assertEquals(1, backendRequests.get());
+    RequestCoalescer coalescer = proxyServlet.getRequestCoalescer();
+    assertEquals(1, coalescer.getLeaders());
+    assertEquals(CLIENTS - 1, coalescer.getCoalesced());
+  }
+
+  @Test
+  public void testKeyHeadersSeparateRequests() throws Exception {
+    startProxy();
+    List<String> bodies = executeConcurrently("/shared", "en", "fr");
+    assertEquals(2, backendRequests.get());
+    assertEquals(2, bodies.stream().distinct().count());
+  }
+
+  @Test
+  public void testSetCookieIsNotShared() throws Exception {
+    ProxyServlet proxyServlet = startProxy();
+    List<String> bodies = executeConcurrently("/cookie");
+    assertEquals(CLIENTS, backendRequests.get());
+    assertEquals(CLIENTS, bodies.stream().distinct().count());
+    assertEquals(CLIENTS - 1, proxyServlet.getRequestCoalescer().getFallbacks());
+  }
+
+  @Test
+  public void testLargeBodyIsNotShared() throws Exception {
+    ProxyServlet proxyServlet = startProxy();
+    List<String> bodies = executeConcurrently("/large");
+    assertEquals(CLIENTS, backendRequests.get());
+    assertTrue(bodies.get(0).startsWith("/large #"));
+    assertEquals(2000 + "/large #1".length(), bodies.get(0).length());
+    assertEquals(CLIENTS - 1, proxyServlet.getRequestCoalescer().getFallbacks());
+  }
+
+  @Test
+  public void testVaryOnOtherHeadersIsNotShared() throws Exception {
+    ProxyServlet proxyServlet = startProxy();
+    executeConcurrently("/vary/User-Agent");
+    assertEquals(CLIENTS, backendRequests.get());
+    assertEquals(CLIENTS - 1, proxyServlet.getRequestCoalescer().getFallbacks());
+  }
+
+  @Test
+  public void testVaryAnythingIsNotShared() throws Exception {
+    startProxy();
+    executeConcurrently("/vary/*");
+    assertEquals(CLIENTS, backendRequests.get());
+  }
+
+  @Test
+  public void testVaryOnKeyHeadersIsShared() throws Exception {
+    startProxy();
+    List<String> bodies = executeConcurrently("/vary/accept-language", "en");
+    assertEquals(1, backendRequests.get());
+    assertEquals(1, bodies.stream().distinct().count());
+  }
+
+  @Test
+  public void testStreamedResponseIsNotBuffered() throws Exception {
+    startProxy();
+    release.countDown();
+    try (CloseableHttpClient client = HttpClientBuilder.create().build();
+         CloseableHttpResponse response = client.execute(
+             new HttpGet(String.format("http://localhost:%d/proxy/streamed", serverPort)))) {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+      assertEquals("first", reader.readLine());
+      firstChunkReceived.countDown();
+      assertEquals("last", reader.readLine());
+    }
+    assertTrue("the first chunk was held back", streamed.get());
+  }
+
+  @Test
+  public void testWaitIsBounded() throws Exception {
+    ProxyServlet proxyServlet = startProxy(ProxyServlet.P_COALESCE_TIMEOUT, "50");
+    executeConcurrently("/shared");
+    assertEquals(CLIENTS, backendRequests.get());
+    assertEquals(CLIENTS - 1, proxyServlet.getRequestCoalescer().getFallbacks());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseBodyTransformerTest {
+
+  /** Bigger than the container's buffer, so it doesn't compute the Content-Length itself. */
+  private static final String CONTENT = String.join("", Collections.nCopies(10000, "hello world "));
+
+  private Tomcat tomcat;
+  private int serverPort;
+  private CloseableHttpClient client;
+
+  /** Applies to text/plain bodies. */
+  private abstract static class TextTransformer implements ResponseBodyTransformer {
+    @Override
+    public boolean appliesTo(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+      return "text/plain".equals(ResponseBodyTransformer.mediaType(proxyResponse));
+    }
+  }
+
+  /** Replaces each chunk with an upper case copy. */
+  private static final ResponseBodyTransformer UPPER_CASE = new TextTransformer() {
+    @Override
+    public boolean preservesLength() {
+      return true;
+    }
+
+    @Override
+    public Stage open(HttpServletRequest servletRequest, HttpResponse proxyResponse, Sink next) {
+      return data -> {
+        ByteBuffer upperCase = ByteBuffer.allocate(data.remaining());
+        while (data.hasRemaining()) {
+          byte b = data.get();
+          upperCase.put(b >= 'a' && b <= 'z' ? (byte) (b - 'a' + 'A') : b);
+        }
+        upperCase.flip();
+        next.write(upperCase);
+      };
+    }
+  };
+
+  /** Drops the spaces, passing on the rest of the chunk in place. */
+  private static final ResponseBodyTransformer NO_SPACES = new TextTransformer() {
+    @Override
+    public Stage open(HttpServletRequest servletRequest, HttpResponse proxyResponse, Sink next) {
+      return data -> {
+        int limit = data.limit();
+        while (data.position() < limit) {
+          int end = data.position();
+          while (end < limit && data.get(end) != ' ') {
+            end++;
+          }
+          data.limit(end);
+          if (data.hasRemaining()) {
+            next.write(data);
+          }
+          data.limit(limit).position(Math.min(end + 1, limit));
+        }
+      };
+    }
+  };
+
+  /** Passes the body and appends "!end" when it's finished. */
+  private static final ResponseBodyTransformer APPEND_END = new TextTransformer() {
+    @Override
+    public Stage open(HttpServletRequest servletRequest, HttpResponse proxyResponse, Sink next) {
+      return new Stage() {
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+          next.write(data);
+        }
+
+        @Override
+        public void finish() throws IOException {
+          next.write(ByteBuffer.wrap("!end".getBytes(StandardCharsets.US_ASCII)));
+        }
+      };
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    Context ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        byte[] body = CONTENT.getBytes(StandardCharsets.US_ASCII);
+        resp.setContentType(req.getPathInfo().equals("/text") ? "text/plain" : "application/octet-stream");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+
+    addProxy(ctx, "upper", UPPER_CASE);
+    addProxy(ctx, "chain", APPEND_END, UPPER_CASE, NO_SPACES);
+
+    client = HttpClientBuilder.create().build();
+  }
+
+  private void addProxy(Context ctx, String name, ResponseBodyTransformer... transformers) {
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, name, new ProxyServlet() {
+      @Override
+      protected List<ResponseBodyTransformer> createResponseBodyTransformers() throws ServletException {
+        List<ResponseBodyTransformer> list = super.createResponseBodyTransformers();
+        list.addAll(Arrays.asList(transformers));
+        return list;
+      }
+    });
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    ctx.addServletMappingDecoded("/" + name + "/*", name);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    tomcat.stop();
+    tomcat.destroy();
+  }
+
+  private String get(String path, String expectedContentLength) throws IOException {
+    try (CloseableHttpResponse response = client.execute(
+        new HttpGet(String.format("http://localhost:%d%s", serverPort, path)))) {
+      if (expectedContentLength == null) {
+        assertNull(response.getFirstHeader("Content-Length"));
+      } else {
+        assertEquals(expectedContentLength, response.getFirstHeader("Content-Length").getValue());
+      }
+      return EntityUtils.toString(response.getEntity(), StandardCharsets.US_ASCII);
+    }
+  }
+
+  @Test
+  public void testLengthPreserved() throws IOException {
+    String contentLength = String.valueOf(CONTENT.length());
+    assertEquals(CONTENT.toUpperCase(Locale.ROOT), get("/upper/text", contentLength));
+  }
+
+  @Test
+  public void testChain() throws IOException {
+    // what the first stage writes when finished goes through the others
+    assertEquals(CONTENT.toUpperCase(Locale.ROOT).replace(" ", "") + "!END", get("/chain/text", null));
+  }
+
+  @Test
+  public void testPassThroughWhenNoneApplies() throws IOException {
+    assertEquals(CONTENT, get("/chain/binary", String.valueOf(CONTENT.length())));
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Proxies with {@link ProxyServlet#P_CACHE} to a backend whose responses say how to cache them.
+ */
+public class ResponseCacheTest {
+
+  private static final String ETAG = "\"v1\"";
+
+  private Tomcat tomcat;
+  private Context ctx;
+  private int serverPort;
+  private ProxyServlet proxyServlet;
+  private CloseableHttpClient client;
+  private final AtomicInteger backendRequests = new AtomicInteger();
+  private final AtomicInteger notModifiedResponses = new AtomicInteger();
+  private final AtomicBoolean failing = new AtomicBoolean();
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector();
+    ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+
+    proxyServlet = new ProxyServlet();
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.addInitParameter(ProxyServlet.P_CACHE, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_CACHE_MAXENTRYSIZE, "1000");
+    proxyWrapper.addInitParameter(ProxyServlet.P_CACHE_STALEIFERROR, "60000");
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    ctx.addServletMappingDecoded("/proxy/*", "proxy");
+
+    // The path says how to cache, e.g. /maxAge, /etag, /noStore, /vary, /swr or /flaky
+    Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        backendRequests.incrementAndGet();
+        String path = req.getPathInfo();
+        if (path.startsWith("/maxAge")) {
+          resp.setHeader("Cache-Control", "max-age=60");
+        } else if (path.startsWith("/etag")) {
+          resp.setHeader("Cache-Control", "no-cache");
+          resp.setHeader("ETag", ETAG);
+          if (ETAG.equals(req.getHeader("If-None-Match"))) {
+            notModifiedResponses.incrementAndGet();
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+          }
+        } else if (path.startsWith("/noStore")) {
+          resp.setHeader("Cache-Control", "no-store");
+        } else if (path.startsWith("/vary")) {
+          resp.setHeader("Cache-Control", "max-age=60");
+          resp.setHeader("Vary", "Accept-Language");
+        } else if (path.startsWith("/tagged")) {
+          resp.setHeader("Cache-Control", "max-age=60");
+          resp.setHeader("ETag", ETAG);
+        } else if (path.startsWith("/swr")) {
+          resp.setHeader("Cache-Control", "max-age=0, stale-while-revalidate=60");
+        } else if (path.startsWith("/flaky")) {
+          if (failing.get()) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+          }
+          resp.setHeader("Cache-Control", "max-age=0");
+        } else if (path.startsWith("/large")) {
+          resp.setHeader("Cache-Control", "max-age=60");
+          resp.getOutputStream().write(new byte[2000]);
+          return;
+        }
+        resp.setContentType("text/plain");
+        String language = req.getHeader("Accept-Language");
+        resp.getOutputStream().write((req.getMethod() + " " + path + " #" + backendRequests.get()
+            + (language == null ? "" : " " + language)).getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    ctx.addServletMappingDecoded("/backend/*", "backend");
+
+    client = HttpClientBuilder.create().build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  private String execute(HttpUriRequest request) throws IOException {
+    try (CloseableHttpResponse response = client.execute(request)) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      return EntityUtils.toString(response.getEntity());
+    }
+  }
+
+  private HttpGet get(String path) {
+    return new HttpGet(String.format("http://localhost:%d/proxy%s", serverPort, path));
+  }
+
+  @Test
+  public void testFreshResponseIsServedFromCache() throws Exception {
+    String first = execute(get("/maxAge"));
+    assertEquals("GET /maxAge #1", first);
+    try (CloseableHttpResponse response = client.execute(get("/maxAge"))) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      assertNotNull(response.getFirstHeader("Age"));
+      assertEquals(first, EntityUtils.toString(response.getEntity()));
+    }
+    assertEquals(1, backendRequests.get());
+
+    ResponseCache cache = proxyServlet.getResponseCache();
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getStores());
+  }
+
+  @Test
+  public void testRequestNoCacheBypassesFreshResponse() throws Exception {
+    execute(get("/maxAge"));
+    HttpGet get = get("/maxAge");
+    get.setHeader("Cache-Control", "no-cache");
+    assertEquals("GET /maxAge #2", execute(get));
+    assertEquals("GET /maxAge #2", execute(get("/maxAge")));
+  }
+
+  @Test
+  public void testStaleResponseIsRevalidated() throws Exception {
+    String first = execute(get("/etag"));
+    assertEquals(first, execute(get("/etag")));
+    assertEquals(first, execute(get("/etag")));
+    assertEquals(3, backendRequests.get());
+    assertEquals(2, notModifiedResponses.get());
+    assertEquals(2, proxyServlet.getResponseCache().getRevalidations());
+  }
+
+  @Test
+  public void testClientConditionalRequestIsPassedThrough() throws Exception {
+    execute(get("/etag"));
+    HttpGet get = get("/etag");
+    get.setHeader("If-None-Match", ETAG);
+    try (CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(304, response.getStatusLine().getStatusCode());
+    }
+  }
+
+  @Test
+  public void testNoStore() throws Exception {
+    execute(get("/noStore"));
+    execute(get("/noStore"));
+    assertEquals(2, backendRequests.get());
+    assertEquals(0, proxyServlet.getResponseCache().getStores());
+  }
+
+  @Test
+  public void testTooLargeIsNotStored() throws Exception {
+    execute(get("/large"));
+    execute(get("/large"));
+    assertEquals(2, backendRequests.get());
+    assertEquals(0, proxyServlet.getResponseCache().getStores());
+  }
+
+  @Test
+  public void testVariantsBySelectingHeader() throws Exception {
+    HttpGet en = get("/vary");
+    en.setHeader("Accept-Language", "en");
+    HttpGet fr = get("/vary");
+    fr.setHeader("Accept-Language", "fr");
+    assertEquals("GET /vary #1 en", execute(en));
+    assertEquals("GET /vary #2 fr", execute(fr));
+    assertEquals("GET /vary #1 en", execute(en));
+    assertEquals("GET /vary #2 fr", execute(fr));
+    assertEquals(2, backendRequests.get());
+  }
+
+  @Test
+  public void testUnsafeMethodInvalidates() throws Exception {
+    execute(get("/maxAge"));
+    execute(new HttpPost(String.format("http://localhost:%d/proxy/maxAge", serverPort)));
+    assertEquals("GET /maxAge #3", execute(get("/maxAge")));
+  }
+
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    assertEquals("GET /swr #1", execute(get("/swr")));
+    // stale at once, so it's served while it's refreshed
+    assertEquals("GET /swr #1", execute(get("/swr")));
+    ResponseCache cache = proxyServlet.getResponseCache();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cache.getStores() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("GET /swr #2", execute(get("/swr")));
+    assertEquals(2, cache.getStaleHits());
+  }
+
+  @Test
+  public void testStaleIfError() throws Exception {
+    assertEquals("GET /flaky #1", execute(get("/flaky")));
+    failing.set(true);
+    assertEquals("GET /flaky #1", execute(get("/flaky")));
+    assertEquals(2, backendRequests.get());
+    assertEquals(1, proxyServlet.getResponseCache().getStaleOnErrors());
+  }
+
+  @Test
+  public void testValidatorIndexAnswersNotModified() throws Exception {
+    Wrapper wrapper = Tomcat.addServlet(ctx, "indexingProxy", new ProxyServlet());
+    wrapper.addInitParameter(ProxyServlet.P_VALIDATORINDEX, "true");
+    wrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    ctx.addServletMappingDecoded("/indexing/*", "indexingProxy");
+    String uri = String.format("http://localhost:%d/indexing/tagged", serverPort);
+    execute(new HttpGet(uri));
+    HttpGet get = new HttpGet(uri);
+    get.setHeader("If-None-Match", ETAG);
+    try (CloseableHttpResponse response = client.execute(get)) {
+      assertEquals(304, response.getStatusLine().getStatusCode());
+      assertEquals(ETAG, response.getFirstHeader("ETag").getValue());
+    }
+    assertEquals(1, backendRequests.get());
+    assertEquals(1, ((ProxyServlet) wrapper.getServlet()).getValidatorIndex().getNotModified());
+  }
+
+  @Test
+  public void testDisabledByDefault() throws Exception {
+    Wrapper wrapper = Tomcat.addServlet(ctx, "uncachedProxy", new ProxyServlet());
+    wrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/backend", serverPort));
+    ctx.addServletMappingDecoded("/uncached/*", "uncachedProxy");
+    String uri = String.format("http://localhost:%d/uncached/maxAge", serverPort);
+    execute(new HttpGet(uri));
+    execute(new HttpGet(uri));
+    assertEquals(2, backendRequests.get());
+    assertNull(((ProxyServlet) wrapper.getServlet()).getResponseCache());
+  }
+}
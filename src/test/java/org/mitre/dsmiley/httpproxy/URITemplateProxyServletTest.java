@@ -28,6 +28,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Properties;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 public class URITemplateProxyServletTest extends ProxyServletTest {
   private static final Log log = LogFactory.getLog(ProxyServletTest.class);
 
@@ -77,15 +80,32 @@ public class URITemplateProxyServletTest extends ProxyServletTest {
     return new URI(this.targetBaseUri).getPath() + expectedUri;
   }
 
-  @Override
-  protected boolean doTestUrlSuffix(String urlSuffix) {
-    // %20 because template proxy normalizes to "+"
-    // ":" is invalid (ought to be encoded) and this proxy normalizes to encoded
-    if (urlSuffix.contains("%20") || urlSuffix.contains(":")) {
-      log.info("Skipping check of urlSuffix: " + urlSuffix + " because this test normalizes it");
-      return false;
-    }
-    return true;
+  @Test
+  public void testTemplateValuesAreLiteral() {
+    URITemplateProxyServlet.CompiledTemplate template =
+        new URITemplateProxyServlet.CompiledTemplate("http://{_host}/a/{_path}/b");
+    assertEquals("http://h$1\\x/a/$0\\$/b", template.render(new String[] {"h$1\\x", "$0\\$"}));
+  }
+
+  @Test
+  public void testTemplateRepeatedVariable() {
+    URITemplateProxyServlet.CompiledTemplate template =
+        new URITemplateProxyServlet.CompiledTemplate("http://{_host}/{_path}/{_host}/{_path}");
+    assertArrayEquals(new String[] {"_host", "_path"}, template.names);
+    assertEquals("http://h/p/h/p", template.render(new String[] {"h", "p"}));
+  }
+
+  @Test
+  public void testTemplateVariablesAtTheEnds() {
+    URITemplateProxyServlet.CompiledTemplate template =
+        new URITemplateProxyServlet.CompiledTemplate("{_scheme}://host/{_path}");
+    assertArrayEquals(new String[] {"_scheme", "_path"}, template.names);
+    assertEquals("https://host/p", template.render(new String[] {"https", "p"}));
+    assertEquals("://host/", template.render(new String[] {"", ""}));
+
+    template = new URITemplateProxyServlet.CompiledTemplate("http://host/path");
+    assertEquals(0, template.names.length);
+    assertEquals("http://host/path", template.render(new String[0]));
   }
 
   @Override @Test
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class ValidatorIndexTest {
+
+  private static final long NOW = 1_700_000_000_000L;
+  private static final String LAST_MODIFIED = DateUtils.formatDate(new Date(NOW - 3_600_000));
+
+  private static HttpRequest get(String uri, String... headers) {
+    HttpRequest request = new BasicHttpRequest("GET", uri);
+    for (int i = 0; i < headers.length; i += 2) {
+      request.addHeader(headers[i], headers[i + 1]);
+    }
+    return request;
+  }
+
+  private static HttpResponse ok(String... headers) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setHeader("Date", DateUtils.formatDate(new Date(NOW)));
+    for (int i = 0; i < headers.length; i += 2) {
+      response.addHeader(headers[i], headers[i + 1]);
+    }
+    return response;
+  }
+
+  @Test
+  public void testIfNoneMatch() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/a"), ok("ETag", "\"1\"", "Cache-Control", "max-age=60"), NOW);
+    HttpResponse notModified = index.notModified(get("/a", "If-None-Match", "\"0\", W/\"1\""), NOW + 1000);
+    assertNotNull(notModified);
+    assertEquals(304, notModified.getStatusLine().getStatusCode());
+    assertEquals("\"1\"", notModified.getFirstHeader("ETag").getValue());
+    assertEquals("max-age=60", notModified.getFirstHeader("Cache-Control").getValue());
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"2\""), NOW + 1000));
+    assertNull(index.notModified(get("/b", "If-None-Match", "\"1\""), NOW + 1000));
+    assertNull(index.notModified(get("/a"), NOW + 1000));
+    assertEquals(1, index.getNotModified());
+  }
+
+  @Test
+  public void testIfNoneMatchWithCommasInTags() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/a"), ok("ETag", "W/\"x,y\"", "Cache-Control", "max-age=60"), NOW);
+    assertNotNull(index.notModified(get("/a", "If-None-Match", "\"0,1\", \"x,y\""), NOW + 1000));
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"x\", \"y\""), NOW + 1000));
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"x,y,z\""), NOW + 1000));
+
+    index.record(get("/b"), ok("ETag", "\"1\"", "Cache-Control", "max-age=60"), NOW);
+    assertNull(index.notModified(get("/b", "If-None-Match", "\"0,\"1\"\""), NOW + 1000));
+  }
+
+  @Test
+  public void testIfModifiedSince() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/a"), ok("Last-Modified", LAST_MODIFIED, "Cache-Control", "max-age=60"), NOW);
+    assertNotNull(index.notModified(get("/a", "If-Modified-Since", LAST_MODIFIED), NOW));
+    assertNull(index.notModified(get("/a", "If-Modified-Since",
+        DateUtils.formatDate(new Date(NOW - 7_200_000))), NOW));
+  }
+
+  @Test
+  public void testExpiresWithFreshness() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/a"), ok("ETag", "\"1\"", "Cache-Control", "max-age=60", "Age", "50"), NOW);
+    assertNotNull(index.notModified(get("/a", "If-None-Match", "\"1\""), NOW + 9000));
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"1\""), NOW + 11000));
+  }
+
+  @Test
+  public void testNotIndexed() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/stale"), ok("ETag", "\"1\"", "Cache-Control", "no-cache"), NOW);
+    index.record(get("/private"), ok("ETag", "\"1\"", "Cache-Control", "private, max-age=60"), NOW);
+    index.record(get("/vary"), ok("ETag", "\"1\"", "Cache-Control", "max-age=60", "Vary", "Accept"), NOW);
+    index.record(get("/none"), ok("Cache-Control", "max-age=60"), NOW);
+    assertEquals(0, index.getIndexed());
+  }
+
+  @Test
+  public void testClientNoCacheAndInvalidation() {
+    ValidatorIndex index = new ValidatorIndex(16);
+    index.record(get("/a"), ok("ETag", "\"1\"", "Cache-Control", "max-age=60"), NOW);
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"1\"", "Cache-Control", "no-cache"), NOW));
+    index.invalidate("/a");
+    assertNull(index.notModified(get("/a", "If-None-Match", "\"1\""), NOW));
+  }
+
+  @Test
+  public void testBounded() {
+    ValidatorIndex index = new ValidatorIndex(4);
+    for (int i = 0; i < 100; i++) {
+      index.record(get("/" + i), ok("ETag", "\"" + i + "\"", "Cache-Control", "max-age=" + (60 + i)), NOW);
+    }
+    int found = 0;
+    for (int i = 0; i < 100; i++) {
+      if (index.notModified(get("/" + i, "If-None-Match", "\"" + i + "\""), NOW) != null) {
+        found++;
+      }
+    }
+    assertEquals(4, found);
+  }
+}
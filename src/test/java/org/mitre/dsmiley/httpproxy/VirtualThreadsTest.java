@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mitre.dsmiley.httpproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Proxies thousands of concurrent requests to a slow backend through a container with only a few
+ * threads, which is only possible because the upstream exchanges don't run on container threads.
+ */
+public class VirtualThreadsTest {
+
+  private static final int CONTAINER_THREADS = 4;
+
+  private Tomcat tomcat;
+  private Context ctx;
+  private int serverPort;
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUp() throws Exception {
+    tomcat = new Tomcat();
+    tomcat.setPort(0);
+    String tempDir = System.getProperty("java.io.tmpdir");
+    tomcat.setBaseDir(tempDir);
+    tomcat.getConnector().setProperty("maxThreads", Integer.toString(CONTAINER_THREADS));
+    tomcat.getConnector().setProperty("minSpareThreads", Integer.toString(CONTAINER_THREADS));
+    tomcat.getConnector().setProperty("acceptCount", "4096");
+    ctx = tomcat.addContext("", tempDir);
+    tomcat.start();
+    serverPort = tomcat.getConnector().getLocalPort();
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (tomcat == null) {
+      return;
+    }
+    scheduler.shutdownNow();
+    tomcat.stop();
+    tomcat.destroy();
+    serverPort = -1;
+  }
+
+  @Test
+  public void testThousandsOfConcurrentRequests() throws Exception {
+    Assume.assumeTrue("virtual threads require Java 21", Runtime.version().feature() >= 21);
+    int requests = 2000;
+    int upstreamConnections = 200;
+
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", ProxyServlet.class.getName());
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.addInitParameter(ProxyServlet.P_VIRTUALTHREADS, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, Integer.toString(upstreamConnections));
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/slowBackend/", serverPort));
+    ctx.addServletMappingDecoded("/slowBackendProxied/*", "proxy");
+
+    // The backend answers after a delay without holding a container thread
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    Wrapper backendWrapper = Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        AsyncContext asyncContext = req.startAsync();
+        scheduler.schedule(() -> {
+          try {
+            inFlight.decrementAndGet();
+            resp.setContentType("text/plain");
+            resp.getWriter().write("Works");
+          } catch (Exception e) {
+            resp.setStatus(500);
+          } finally {
+            asyncContext.complete();
+          }
+        }, 200, TimeUnit.MILLISECONDS);
+      }
+    });
+    backendWrapper.setAsyncSupported(true);
+    ctx.addServletMappingDecoded("/slowBackend/*", "backend");
+
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    HttpRequest request = HttpRequest.newBuilder(
+        URI.create(String.format("http://localhost:%d/slowBackendProxied/test", serverPort))).build();
+    List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>(requests);
+    for (int i = 0; i < requests; i++) {
+      results.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    for (CompletableFuture<HttpResponse<String>> result : results) {
+      HttpResponse<String> response = result.get(60, TimeUnit.SECONDS);
+      assertEquals(200, response.statusCode());
+      assertEquals("Works", response.body());
+    }
+    // Blocking on container threads would allow at most CONTAINER_THREADS exchanges at a time
+    assertTrue("max concurrent upstream exchanges: " + maxInFlight,
+        maxInFlight.get() > CONTAINER_THREADS * 10);
+    assertTrue(maxInFlight.get() <= upstreamConnections);
+  }
+
+  @Test
+  public void testCoalescedRequestsDontHoldPermits() throws Exception {
+    int requests = 8;
+    ProxyServlet proxyServlet = new ProxyServlet() {
+      @Override
+      protected ExecutorService createProxyExecutor() {
+        return Executors.newCachedThreadPool();//the permits work the same before Java 21
+      }
+    };
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.setLoadOnStartup(1);
+    proxyWrapper.addInitParameter(ProxyServlet.P_VIRTUALTHREADS, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_MAXCONNECTIONS, "1");
+    proxyWrapper.addInitParameter(ProxyServlet.P_COALESCE, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/slowBackend/", serverPort));
+    ctx.addServletMappingDecoded("/slowBackendProxied/*", "proxy");
+
+    AtomicInteger backendRequests = new AtomicInteger();
+    Wrapper backendWrapper = Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        backendRequests.incrementAndGet();
+        AsyncContext asyncContext = req.startAsync();
+        scheduler.schedule(() -> {
+          try {
+            resp.setContentType("text/plain");
+            resp.getWriter().write("Works");
+          } catch (Exception e) {
+            resp.setStatus(500);
+          } finally {
+            asyncContext.complete();
+          }
+        }, 500, TimeUnit.MILLISECONDS);
+      }
+    });
+    backendWrapper.setAsyncSupported(true);
+    ctx.addServletMappingDecoded("/slowBackend/*", "backend");
+
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    HttpRequest request = HttpRequest.newBuilder(
+        URI.create(String.format("http://localhost:%d/slowBackendProxied/test", serverPort))).build();
+    List<CompletableFuture<HttpResponse<String>>> results = new ArrayList<>(requests);
+    for (int i = 0; i < requests; i++) {
+      results.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+    }
+    for (CompletableFuture<HttpResponse<String>> result : results) {
+      assertEquals("Works", result.get(30, TimeUnit.SECONDS).body());
+    }
+    // Waiting for the single permit, they'd be sent one after the other instead
+    assertTrue("backend requests: " + backendRequests, backendRequests.get() < requests / 2);
+    assertTrue(proxyServlet.getRequestCoalescer().getCoalesced() > 0);
+  }
+
+  @Test
+  public void testDestroyLetsInFlightExchangesComplete() throws Exception {
+    ProxyServlet proxyServlet = new ProxyServlet() {
+      @Override
+      protected ExecutorService createProxyExecutor() {
+        return Executors.newCachedThreadPool();
+      }
+    };
+    Wrapper proxyWrapper = Tomcat.addServlet(ctx, "proxy", proxyServlet);
+    proxyWrapper.setAsyncSupported(true);
+    proxyWrapper.setLoadOnStartup(1);
+    proxyWrapper.addInitParameter(ProxyServlet.P_VIRTUALTHREADS, "true");
+    proxyWrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        String.format("http://localhost:%d/slowBackend/", serverPort));
+    ctx.addServletMappingDecoded("/slowBackendProxied/*", "proxy");
+
+    CountDownLatch backendCalled = new CountDownLatch(1);
+    Wrapper backendWrapper = Tomcat.addServlet(ctx, "backend", new HttpServlet() {
+      @Override
+      protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        backendCalled.countDown();
+        AsyncContext asyncContext = req.startAsync();
+        scheduler.schedule(() -> {
+          try {
+            resp.setContentType("text/plain");
+            resp.getWriter().write("Works");
+          } catch (Exception e) {
+            resp.setStatus(500);
+          } finally {
+            asyncContext.complete();
+          }
+        }, 500, TimeUnit.MILLISECONDS);
+      }
+    });
+    backendWrapper.setAsyncSupported(true);
+    ctx.addServletMappingDecoded("/slowBackend/*", "backend");
+
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    HttpRequest request = HttpRequest.newBuilder(
+        URI.create(String.format("http://localhost:%d/slowBackendProxied/test", serverPort))).build();
+    CompletableFuture<HttpResponse<String>> result = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    assertTrue(backendCalled.await(10, TimeUnit.SECONDS));
+    // The container thread is long gone; only the executor knows about the exchange
+    proxyServlet.destroy();
+    HttpResponse<String> response = result.get(30, TimeUnit.SECONDS);
+    assertEquals(200, response.statusCode());
+    assertEquals("Works", response.body());
+  }
+}